@@ -0,0 +1,123 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/*
+Checks that stepping the simulation allocates nothing once it is warmed up.
+
+   java -cp <sketch classes> AllocationCheck [steps]
+
+lays a grid graph out in every combination of repulsion engine, serial or parallel
+stepping and sleeping on or off, and counts the bytes allocated by the thread that
+steps and by the ParallelStepper's workers (com.sun.management.ThreadMXBean) over
+that many steps (default 200) after a warm-up.  It prints the bytes per step of every
+case and exits with status 1 if any of them allocated anything.
+
+The small graph is under Simulation.PARALLEL_THRESHOLD, so it is stepped on one thread
+whatever the setting; the big one is stepped by the workers when parallel stepping is
+on.  The cost of asking the JVM for the counters is measured with no step in between
+and taken off.
+*/
+public class AllocationCheck {
+  static final int WARMUP = 300;
+
+  com.sun.management.ThreadMXBean threads;
+  int steps;
+
+  AllocationCheck(int _steps) {
+    threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    threads.setThreadAllocatedMemoryEnabled(true);
+    steps = _steps;
+  }
+
+  public static void main(String[] args) {
+    AllocationCheck check = new AllocationCheck(args.length > 0 ? Integer.parseInt(args[0]) : 200);
+    int[] sizes = {1000, 5000};
+    int[] engines = {Simulation.REPULSION_GRID, Simulation.REPULSION_BARNES_HUT, Simulation.REPULSION_DIRECT};
+    String[] engineNames = {"direct", "barnes-hut", "grid"};
+    boolean clean = true;
+    for (int n : sizes) {
+      for (int engine : engines) {
+        if (engine == Simulation.REPULSION_DIRECT && n > 1000) {
+          /* Every pair: far too slow to be worth it on the big graph */
+          continue;
+        }
+        for (int parallel = 0; parallel < 2; parallel++) {
+          for (int sleeping = 0; sleeping < 2; sleeping++) {
+            double perStep = check.run(n, engine, parallel == 1, sleeping == 1);
+            String name = n + " balls, " + engineNames[engine] + (parallel == 1 ? ", parallel" : ", serial")
+              + (sleeping == 1 ? ", sleeping" : "");
+            System.out.println(name + ": " + perStep + " bytes/step");
+            if (perStep > 0) {
+              clean = false;
+            }
+          }
+        }
+      }
+    }
+    if (!clean) {
+      System.out.println("FAILED: the simulation step allocates");
+      System.exit(1);
+    }
+    System.out.println("OK: no allocation in the simulation step");
+  }
+
+  /* Bytes allocated per step, in steady state */
+  double run(int n, int engine, boolean parallel, boolean sleeping) {
+    PhysicsStore store = new PhysicsStore();
+    ArrayList<Node> nodes = new ArrayList<Node>();
+    int side = (int) Math.ceil(Math.sqrt(n));
+    java.util.Random random = new java.util.Random(1);
+    for (int i = 0; i < n; i++) {
+      /* A jittered grid, so the springs have work to do */
+      nodes.add(new Node(store, 40*(i % side) + 20*random.nextFloat(), 40*(i / side) + 20*random.nextFloat(), 0, 0));
+    }
+    for (int i = 0; i < n; i++) {
+      if (i % side + 1 < side && i+1 < n) {
+        store.topology.addEdge(i, i+1);
+      }
+      if (i + side < n) {
+        store.topology.addEdge(i, i+side);
+      }
+    }
+    ParallelStepper stepper = new ParallelStepper(4);
+    Simulation sim = new Simulation(store, nodes, stepper);
+    sim.repulsionMode = engine;
+    sim.parallelStepping = parallel;
+    sim.sleeping = sleeping;
+    sim.setBounds(40*side + 100, 40*side + 100);
+
+    for (int k = 0; k < WARMUP; k++) {
+      sim.step();
+    }
+    long[] ids = threadIds(stepper);
+    long overhead = allocated(ids);
+    overhead = allocated(ids) - overhead;
+    long before = allocated(ids);
+    for (int k = 0; k < steps; k++) {
+      sim.step();
+    }
+    long bytes = allocated(ids) - before - overhead;
+    stepper.shutdown();
+    return Math.max(0, bytes)/(double) steps;
+  }
+
+  /* The stepping thread and the workers */
+  long[] threadIds(ParallelStepper stepper) {
+    int workers = stepper.workers != null ? stepper.workers.length : 0;
+    long[] ids = new long[workers+1];
+    ids[0] = Thread.currentThread().getId();
+    for (int i = 0; i < workers; i++) {
+      ids[i+1] = stepper.workers[i].getId();
+    }
+    return ids;
+  }
+
+  long allocated(long[] ids) {
+    long[] bytes = threads.getThreadAllocatedBytes(ids);
+    long total = 0;
+    for (long b : bytes) {
+      total += b;
+    }
+    return total;
+  }
+}
@@ -1,48 +1,26 @@
-class Ball {
-  float desiredEquilibriumDistance;
-  PVector position;
-  PVector velocity;
-  float mass;
+/*
+A ball is a view onto one index (id) of a PhysicsStore: its position, velocity,
+mass and accumulated force live in the store's arrays, and its edges in the store's
+Topology (its children are its out-edges, its parents its in-edges).  Its
+spring/repulsion parameters are inherited from Node, and the ball adds everything
+needed to draw it.  The Simulation moves it.
+*/
+class Ball extends Node {
   float ballSize;
-  ArrayList<Ball> attractiveBalls;
-  ArrayList<Ball> children;
-  ArrayList<Ball> parents;
-  ArrayList<Ball> repulsiveBalls;
-  float springConstant;
-  float nomSpringDistance;
-  float repulsiveConstant;
-  float dampingConstant;
-  float playbackSpeed;
   color ballColor;
-  String name;
   boolean isHoveredOver;
   boolean isParentHovered;
-  boolean isSelected;
   float hoverBeginTime;
   float hoverEndTime;
   float DEFAULT_BALL_SIZE = 10;
   float MAX_BALL_SIZE_FACTOR = 3;
-  boolean applyUniformForce;
 
-  Ball(PVector _position, PVector _velocity) {
+  Ball(PhysicsStore _store, PVector _position, PVector _velocity) {
+    super(_store, _position.x, _position.y, _velocity.x, _velocity.y);
     ballColor = color(int(random(50,255)),int(random(50,255)),int(random(50,255)));
-    springConstant = 2;
-    nomSpringDistance = 1;
-    repulsiveConstant = springConstant * (desiredEquilibriumDistance*desiredEquilibriumDistance);
-    dampingConstant = 0.5*springConstant; //2*springConstant;
-    playbackSpeed = 5;
-    mass = 1;
     isHoveredOver = false;
-    isSelected = false;
     ballSize = DEFAULT_BALL_SIZE;
     desiredEquilibriumDistance = ballSize*4;
-    position = _position;
-    velocity = _velocity;
-    attractiveBalls = new ArrayList<Ball>();
-    repulsiveBalls = new ArrayList<Ball>();
-    children = new ArrayList<Ball>();
-    parents = new ArrayList<Ball>();
-    applyUniformForce = false;
   } 
 
   void select() {
@@ -55,6 +33,7 @@ class Ball {
   void hover() {
     if (!isHoveredOver) {
       hoverBeginTime = millis();
+      hoveredBalls.add(this);
     }
     isHoveredOver = true;
     //for (Ball c : children) {
@@ -62,77 +41,68 @@ class Ball {
    // }
   }
 
+  /* detectHover() calls this for every ball in hoveredBalls that is not under the mouse,
+     which lets go of the relatives display() hovered as well */
   void noHover() {
     if (isHoveredOver) {
       hoverEndTime = millis();
     }
     isHoveredOver = false;
-     for (Ball c : children) {
-       if (c.isHoveredOver) { c.noHover(); } 
-     }
   }
 
-  void setName(String _name) {
-    name = _name;
+  /* Where the ball is drawn: the latest snapshot published by the simulation */
+  float getX() {
+    return store.rx[id];
+  }
+
+  float getY() {
+    return store.ry[id];
+  }
+
+  PVector getPosition() {
+    return new PVector(store.rx[id], store.ry[id]);
   }
 
   ArrayList<String> getDependencies() {
    ArrayList<String> dep = new ArrayList<String>();
-   println(name + " has " + children.size() + " children.");
-   
-   for (Ball c : children) {
+   Topology t = store.topology;
+   for (int k = t.firstOut(id); k != Topology.END; k = t.nextOut(id, k)) {
+    Ball c = balls.get(t.out(k));
     dep.add(name + "->" + c.name);
     dep.addAll(c.getDependencies());
    }
    return dep;
   }
 
+  /* Draws the ball and its edges, in as much detail as displayBalls() decided there is
+     room for.  Only called for the balls in the window. */
   void display() {
 
-    ArrayList<Ball> family;
+    /* The family is the parents (in-edges) or the children; the edges to the others
+       are drawn by the balls at their other end */
+    Topology t = store.topology;
     boolean showParents = true;
-    if (showParents) {
-      family = parents;
-    } else {
-      family = children;
-    }
     
     if (isHoveredOver) {
-      strokeWeight(6);
-      stroke(ballColor,200);
-      for (int i=0; i<family.size(); i++) {
-         family.get(i).hover(); 
+      for (int k = firstRelative(t, showParents); k != Topology.END; k = nextRelative(t, showParents, k)) {
+         balls.get(relative(t, showParents, k)).hover(); 
       }
     } 
-    else {
-      strokeWeight(3);
-      stroke(ballColor,50);
-    }
-
-    fill(ballColor,150);
-    
+    edgeStyle();
     
-    
-    
-    for (int i = 0; i < family.size(); i++) {
-      Ball b = family.get(i);
-
-
-      int n = 3;  
-      PVector d= new PVector(b.position.x-position.x,b.position.y-position.y);
-      d.limit(d.mag()-DEFAULT_BALL_SIZE/2.0);
-      if (d.mag() > n*DEFAULT_BALL_SIZE) {
-        // Draw an arrow
-        pushMatrix();
-        translate(position.x+d.x, position.y+d.y);
-        rotate(atan2(b.position.y-position.y, b.position.x-position.x));
+    for (int k = firstRelative(t, showParents); k != Topology.END; k = nextRelative(t, showParents, k)) {
+      displayEdge(balls.get(relative(t, showParents, k)));
+    }
 
-        float triSize = ballSize/5.0;
-        triangle(0, 0, -triSize, triSize, -triSize, -triSize);
-        popMatrix();
+    /* A ball out of the window is not drawn, so the edges it has to this one are drawn
+       from here (an edge with both ends out of the window is not drawn at all) */
+    for (int k = firstRelative(t, !showParents); k != Topology.END; k = nextRelative(t, !showParents, k)) {
+      int other = relative(t, !showParents, k);
+      if (!inView[other]) {
+        Ball b = balls.get(other);
+        b.edgeStyle();
+        b.displayEdge(this);
       }
-
-      line(position.x,position.y, position.x+d.x, position.y+d.y);
     }
 
 
@@ -154,6 +124,12 @@ class Ball {
       }
     }
 
+    if (isDot()) {
+      strokeWeight(1);
+      stroke(ballColor);
+      point(getX(),getY());
+      return;
+    }
     fill(ballColor);
     if (isSelected) {
       strokeWeight(4);
@@ -163,149 +139,94 @@ class Ball {
       strokeWeight(1);
       stroke(255);
     }    
-    ellipse(position.x,position.y,ballSize,ballSize);
+    ellipse(getX(),getY(),ballSize,ballSize);
   }
 
-  void displayName() {
-    float yOffset = ballSize + 5;
-    float yText = position.y - yOffset;
-    if (yText < 0) {
-      yText = position.y + yOffset;
-    }
-
-    float xText = position.x;
-    textAlign(CENTER);
-    
-    rectMode(CENTER);    
-    fill(color(0,200));
-    noStroke();
-    rect(xText,yText-3,textWidth(name),15);
-    
-    fill(ballColor);
-    text(name,xText,yText);
+  /* Walks the parents (in-edges) or else the children of the ball (see Topology) */
+  int firstRelative(Topology t, boolean parents) {
+    return parents ? t.firstIn(id) : t.firstOut(id);
   }
 
-  void update(float framerate) {
-
-    float dt = playbackSpeed *(1.0/framerate);
-
-    PVector ballForce = computeForce();
-    PVector acceleration = PVector.div(ballForce,mass);
-
-
-    velocity.add(PVector.mult(acceleration,dt));
-    position.add(PVector.mult(velocity,dt));
-    // println("Ball at ("  + round(position.x) + "," + round(position.y) + "): Vel = (" + velocity.x +","+velocity.y+"); Accel = (" + acceleration.x + "," + acceleration.y + ")");
-  }
-
-  /* Check for collisions with the walls */
-  void checkWalls(float _width, float _height) {
-    float eps = 1.0;
-    if (position.x < 0 || position.x > _width) {
-      velocity.x = -0.9*velocity.x;
-      if (position.x < 0) {
-        position.x = eps;
-      } 
-      else {
-        position.x = _width - eps;
-      }
-    }
-    if (position.y < 0 || position.y > _height) {
-      velocity.y = -0.9*velocity.y;
-      if (position.y < 0) {
-        position.y = eps;
-      } 
-      else {
-        position.y = _height - eps;
-      }
-    }
+  int nextRelative(Topology t, boolean parents, int k) {
+    return parents ? t.nextIn(id, k) : t.nextOut(id, k);
   }
 
-  void addChild(Ball b) {
-    children.add(b);
-    b.addParent(this);
-  }
-  
-  void addParent(Ball b) {
-     parents.add(b); 
+  int relative(Topology t, boolean parents, int k) {
+    return parents ? t.in(k) : t.out(k);
   }
 
-  void addAttractiveBall(Ball ball) {
-    attractiveBalls.add(ball);
-  }
-  void addRepulsiveBall(Ball ball) {
-    repulsiveBalls.add(ball);
+  /* Too crowded to make out: a dot with hairline edges, unless it is the one being looked at */
+  boolean isDot() {
+    return drawDots && !isHoveredOver && !isSelected;
   }
 
-  ArrayList<Ball> getAttractiveBalls() {
-    return attractiveBalls;
-  }
+  /* Stroke and fill for the ball's edges and arrowheads */
+  void edgeStyle() {
+    if (isHoveredOver) {
+      strokeWeight(6);
+      stroke(ballColor,200);
+    } 
+    else if (isDot()) {
+      strokeWeight(1);
+      stroke(ballColor,50);
+    }
+    else {
+      strokeWeight(3);
+      stroke(ballColor,50);
+    }
 
-  ArrayList<Ball> getRepulsiveBalls() {
-    return repulsiveBalls;
+    fill(ballColor,150);
   }
 
-  PVector computeForce() {
-    // Compute forces from attractive balls
-
-    PVector displacement = new PVector(0,0);
-    for (int i = 0; i < attractiveBalls.size(); i++) {
-      Ball b = (Ball) attractiveBalls.get(i);
-      PVector distance = PVector.sub(position,b.position);
-      PVector e = new PVector(distance.x, distance.y);
-      e.normalize();
-      e.mult(desiredEquilibriumDistance);
-      distance.sub(e);
-      displacement.add(distance);
+  /* The edge from this ball to b, with an arrowhead at b if it is long enough */
+  void displayEdge(Ball b) {
+    float x = getX();
+    float y = getY();
+
+    int n = 3;  
+    /* Pull the end of the edge back to the edge of the other ball */
+    float dx = b.getX()-x;
+    float dy = b.getY()-y;
+    float mag = sqrt(dx*dx + dy*dy);
+    if (mag > 0) {
+      float shortened = (mag-DEFAULT_BALL_SIZE/2.0)/mag;
+      dx *= shortened;
+      dy *= shortened;
     }
-    PVector attractiveForce = PVector.mult(displacement,-springConstant);
-
-
-    /* Compute Cumulative Repulsive Force 
-     (net displacement is allowable because 
-     force is linear combinations of vectors
-     (principle of superposition))
-     */
-    int n = 3;
-    PVector repulsiveForce = new PVector(0,0);
-    float Fmax = 100;
-    for (int i = 0; i < repulsiveBalls.size(); i++) {
-      Ball b = (Ball) repulsiveBalls.get(i);
-      displacement = PVector.sub(position, b.position);
-
-      if (displacement.mag() < desiredEquilibriumDistance*n && displacement.mag() > 0) {
-
-        PVector d_hat = PVector.div(displacement,displacement.mag());
-        PVector repel = PVector.mult(d_hat,Fmax + (-Fmax/ (n*desiredEquilibriumDistance)) * displacement.mag());
-
-        repulsiveForce.add(repel);
-      }
+    if (drawArrows && mag-DEFAULT_BALL_SIZE/2.0 > n*DEFAULT_BALL_SIZE) {
+      // Draw an arrow
+      pushMatrix();
+      translate(x+dx, y+dy);
+      rotate(atan2(b.getY()-y, b.getX()-x));
+
+      float triSize = ballSize/5.0;
+      triangle(0, 0, -triSize, triSize, -triSize, -triSize);
+      popMatrix();
     }
 
+    line(x,y, x+dx, y+dy);
+  }
 
+  void displayName() {
+    float yOffset = ballSize + 5;
+    float yText = getY() - yOffset;
+    if (yText < 0) {
+      yText = getY() + yOffset;
+    }
 
-
-
-
-    // Compute damping force to prevent endless oscillation (used to bleed energy from total system).
-    // TODO -> PVector relativeVelocity = PVector.sub(velocity
-    PVector dampingForce = PVector.mult(velocity,-dampingConstant);
-    
+    float xText = getX();
+    textAlign(CENTER);
     
-    float uniformForceMag = 0; // 100;
-    PVector uniformForce = new PVector(0,uniformForceMag);
+    rectMode(CENTER);    
+    fill(color(0,200));
+    noStroke();
+    rect(xText,yText-3,textWidth(name),15);
     
+    fill(ballColor);
+    text(name,xText,yText);
+  }
 
-    /* Sum up the vectors */
-    PVector totalForce = new PVector(0,0);
-    totalForce.add(attractiveForce);
-    totalForce.add(repulsiveForce);
-    totalForce.add(dampingForce);
-    
-    if (applyUniformForce) {
-      totalForce.add(uniformForce);
-    }
-    return totalForce;
+  void addChild(Ball b) {
+    store.topology.addEdge(id, b.id);
   }
 }
-
@@ -33,18 +33,40 @@ This program executes a physical simulation of a network of nodes to find a decl
      * RIGHT-CLICK: releases explosive force to jolt the system.
    
    KEYBOARD CONTROLS:
-     * d : resumes the simulation
+     * d : resumes the simulation (it also stops by itself once the layout converges, see ConvergenceMonitor)
      * f : pauses the simulation
      * c : clears the selection
+     * x : removes the selected nodes (and their edges) from the graph
+     * b : cycles the repulsion engine (grid -> Barnes-Hut -> every pair)
+     * z : toggles sleeping (settled balls stop being simulated until something disturbs them)
+     * m : toggles multi-core stepping (used on graphs of Simulation.PARALLEL_THRESHOLD balls or more)
+     * i : switches the integrator between velocity Verlet and semi-implicit Euler
+     * t : toggles the adaptive time step (see StepController)
+     * l : lays the network out again from scratch with the multilevel layout (done automatically
+           on start-up for graphs of MultilevelLayout.THRESHOLD balls or more)
+     * s : saves the layout with the graph's snapshot (see GraphSnapshot)
+     * k : saves a checkpoint of the simulation now (see LayoutCheckpoint; one is also taken
+           every minute while it runs and on exit, and picked up again on the next launch)
+     * v : toggles the level of detail (see displayBalls()): with it off every ball, arrow
+           and name is drawn, as in a PDF export
+
+   The layout is also kept in a cache of the graphs opened before (see LayoutCache), saved
+   whenever the simulation settles and on exit: a graph opened again, from any file, starts
+   out laid out, and only the nodes that are new since need to find their place.
 
 */
 import processing.pdf.*;
 import processing.video.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 ArrayList<Ball> balls;
+PhysicsStore physics;
+Simulation sim;
+SimulationThread simThread;
+ConcurrentLinkedQueue<Runnable> graphEdits;   // see editGraph()
 ArrayList<PVector> mousePositions;
 float framerate;
-boolean optimizing;
+volatile boolean optimizing;   // read by the simulation thread
 boolean drawing;
 ArrayList<Ball> selectedBalls;
 float lastRunTime;
@@ -56,8 +78,29 @@ ArrayList<PVector> preDragShapePositions;
 boolean record;
 PFont font;
 GraphReader gr;
+GraphWatcher watcher;
 boolean displayPDFMessage;
 float PDF_Message_Countdown;
+int CHECKPOINT_INTERVAL = 60000;   // ms between automatic checkpoints
+int lastCheckpoint;
+long checkpointSteps;              // simulation steps at the last checkpoint
+volatile boolean checkpointing;    // one is being written in the background
+volatile boolean snapshotting;     // a snapshot is being written in the background
+LayoutCache layoutCache;
+volatile boolean caching;          // a layout is being written to the cache
+volatile boolean layingOut;        // a multilevel layout is running in the background
+/* Level of detail (see displayBalls()) */
+boolean levelOfDetail = true;
+float DOT_SPACING = 4;             // px of window per visible ball, on a side, below which
+float ARROW_SPACING = 15;          //   balls are dots, arrowheads are left out,
+float LABEL_SPACING = 30;          //   and only hovered and selected balls are named
+int[] visibleBalls = new int[0];   // ids of the balls in the window this frame
+int visibleCount;
+ArrayList<Ball> hoveredBalls = new ArrayList<Ball>();   // every ball with isHoveredOver set
+boolean[] inView = new boolean[0]; // by id
+boolean drawDots;
+boolean drawArrows;
+boolean drawLabels;
 // MovieMaker mm;
 
 void setup() {
@@ -88,6 +131,23 @@ void setup() {
   } else {
     gr.buildGraph();
     balls = gr.getGraph();
+    physics = gr.store;
+    sim = new Simulation(physics, balls);
+    sim.framerate = framerate;
+    sim.setBounds(width, height);
+    simThread = new SimulationThread(sim);
+    boolean resumed = resumeCheckpoint();
+    layoutCache = new LayoutCache();
+    if (!resumed && !gr.positioned) {
+      resumed = warmStart();
+    }
+    simThread.start();
+    graphEdits = new ConcurrentLinkedQueue<Runnable>();
+    watcher = new GraphWatcher(gr);
+    watcher.start();
+    if (balls.size() >= MultilevelLayout.THRESHOLD && !gr.positioned && !resumed) {
+      multilevelLayout();
+    }
     PDF_Message_Countdown = 0;
     
     
@@ -103,6 +163,15 @@ void draw() {
   //println("Optimizing = " + optimizing);
   background(0);
   
+  applyGraphEdits();
+
+  if (millis() - lastCheckpoint > CHECKPOINT_INTERVAL && simThread.steps != checkpointSteps) {
+    checkpoint();
+  }
+  
+  /* Draw the latest positions published by the simulation thread */
+  physics.acquire();
+  
   /* Done */
   //println("Eval sim triggers");
   evaluateSimulationTriggers();
@@ -133,6 +202,7 @@ void draw() {
   
   if (record) {
    endRecord(); 
+   record = false;
   }
   
   //mm.addFrame();
@@ -140,8 +210,11 @@ void draw() {
 }
 
 void displayBallNames() {
- for (Ball b: balls) {
-  b.displayName();
+ for (int k = 0; k < visibleCount; k++) {
+  Ball b = balls.get(visibleBalls[k]);
+  if (drawLabels || b.isHoveredOver || b.isSelected) {
+   b.displayName();
+  }
  } 
 }
 
@@ -166,7 +239,7 @@ void mousePressed() {
     
       boolean userClickingOnSelectedBall = false;
       for (Ball b : selectedBalls) {
-        if (PVector.dist(mousePosition, b.position) <= b.ballSize) {
+        if (PVector.dist(mousePosition, b.getPosition()) <= b.ballSize) {
          userClickingOnSelectedBall = true; 
         }
       }
@@ -180,6 +253,12 @@ void mousePressed() {
       if (userClickingOnSelectedBall || userClickingInLasso) {
         dragging = true;
         anchor = new PVector(mouseX, mouseY);
+        /* Where the drag starts from, one per selected ball, however they got selected
+           (a resumed checkpoint restores a selection without any) */
+        preDragBallPositions.clear();
+        for (Ball b : selectedBalls) {
+          preDragBallPositions.add(b.getPosition());
+        }
       } else {
        
         // We are not clicking within the selection area or on a previously selected ball.
@@ -200,10 +279,10 @@ void mousePressed() {
         // Are we clicking on a node (after hovering over it)?
         boolean clickingOnABall = false;
         for (Ball b : balls) {
-         if (PVector.dist(new PVector(mouseX,mouseY),b.position) <= b.ballSize) {
+         if (PVector.dist(new PVector(mouseX,mouseY),b.getPosition()) <= b.ballSize) {
           selectedBalls.add(b);
           b.select();
-          preDragBallPositions.add(new PVector(b.position.x, b.position.y));
+          preDragBallPositions.add(b.getPosition());
           dragging = true;
           clickingOnABall = true;
          }
@@ -225,7 +304,7 @@ void mousePressed() {
     
   } else if (mouseButton == RIGHT) {
    explode();
-   optimizing = true;
+   simThread.resume();
   }
   
 }
@@ -256,18 +335,18 @@ void mouseReleased() {
     }
     /* Detect if balls are in selection*/
     for (Ball b: balls) {
-      if (insidePolygon(b.position, mousePositions)) {
+      if (insidePolygon(b.getPosition(), mousePositions)) {
         /* Yes, this ball is in the selection, so add it to selectedBalls */
         println(b.name + " is inside selection");
         selectedBalls.add(b);
         b.select();
-        preDragBallPositions.add(new PVector(b.position.x, b.position.y));
+        preDragBallPositions.add(b.getPosition());
       }
     }
   } else {
     preDragBallPositions.clear();
     for (Ball b : selectedBalls) {
-      preDragBallPositions.add(new PVector(b.position.x, b.position.y));
+      preDragBallPositions.add(b.getPosition());
     } 
     
   }
@@ -285,30 +364,73 @@ void mouseDragged() {
     mousePositions.clear();
     if (selectedBalls.size() == 1) {
       println("Moving selected ball to mouse position...");
-      selectedBalls.get(0).position = new PVector(mouseX, mouseY);
+      moveBalls(new Ball[] { selectedBalls.get(0) }, new float[] { mouseX }, new float[] { mouseY });
     } else {
       println("Shifting group of balls...");
+      Ball[] moved = new Ball[selectedBalls.size()];
+      float[] newX = new float[moved.length];
+      float[] newY = new float[moved.length];
       for (int i = 0; i<selectedBalls.size(); i++) {
-        Ball b = selectedBalls.get(i);
+        moved[i] = selectedBalls.get(i);
         PVector displacement = PVector.sub(new PVector(mouseX,mouseY),anchor);
-        b.position = PVector.add(displacement, preDragBallPositions.get(i));
+        PVector newPosition = PVector.add(displacement, preDragBallPositions.get(i));
+        newX[i] = newPosition.x;
+        newY[i] = newPosition.y;
       }
+      moveBalls(moved, newX, newY);
     }
   }
 
 }
 
+/* Hand the new positions of dragged balls over to the simulation thread */
+void moveBalls(final Ball[] moved, final float[] newX, final float[] newY) {
+  simThread.post(new Runnable() {
+    public void run() {
+      for (int i = 0; i < moved.length; i++) {
+        moved[i].setPosition(newX[i], newY[i]);
+      }
+    }
+  });
+  simThread.resume();
+}
+
+/*
+Draws what can be seen of the balls (the simulation thread moves them).  One pass over
+the published positions finds the balls in the window, and only those are drawn, with
+their edges (see Ball.display()).  The more balls there are in the window, the less of
+each one is drawn: with less than ARROW_SPACING px (on a side) of window per ball the
+arrowheads go, below LABEL_SPACING the names (but for the hovered and selected balls),
+and below DOT_SPACING every ball is a dot with hairline edges.  So a frame costs about
+what is on screen, however big the graph is.  A PDF export draws everything.
+*/
 void displayBalls() {
   // println("Displaying balls...");
-  /* Update and Draw all of the balls */
-  for (int i = 0; i < balls.size(); i++) {
-    Ball b = (Ball) balls.get(i);
-
-    if (optimizing && !selectedBalls.contains(b)) {
-      b.update(framerate);  
-      b.checkWalls(width, height);
+  int n = balls.size();
+  if (visibleBalls.length < n) {
+    visibleBalls = new int[n];
+    inView = new boolean[n];
+  }
+  /* A grown ball is MAX_BALL_SIZE_FACTOR times bigger */
+  float margin = 15;
+  visibleCount = 0;
+  for (int i = 0; i < n; i++) {
+    float x = physics.rx[i];
+    float y = physics.ry[i];
+    inView[i] = x >= -margin && x <= width+margin && y >= -margin && y <= height+margin;
+    if (inView[i]) {
+      visibleBalls[visibleCount++] = i;
     }
-    b.display();
+  }
+
+  boolean full = !levelOfDetail || record;
+  float spacing = sqrt(width*height/(float) max(visibleCount, 1));
+  drawDots = !full && spacing < DOT_SPACING;
+  drawArrows = full || spacing >= ARROW_SPACING;
+  drawLabels = full || spacing >= LABEL_SPACING;
+
+  for (int k = 0; k < visibleCount; k++) {
+    balls.get(visibleBalls[k]).display();
   }
 }
 
@@ -344,7 +466,7 @@ void manageKeyboardInput() {
     
     /* Toggle between enabling/disabling the node dynamics */
     if (key == 'd') {
-      optimizing = true;
+      simThread.resume();
     } else if (key == 'f') {
      optimizing = false; 
     }
@@ -368,15 +490,10 @@ void manageKeyboardInput() {
     /* Increase equilibrium distance */
     float eqDistanceUpdate = 0.03;
     if (key == 'q') {
-     for (Ball b : balls) {
-      b.desiredEquilibriumDistance *= 1.0+eqDistanceUpdate;
-     } 
+     scaleEquilibriumDistance(1.0+eqDistanceUpdate);
      /* Decrease equilibrium distance */
      } else if (key == 'a') {
-      for (Ball b : balls) {
-      b.desiredEquilibriumDistance *= 1.0-eqDistanceUpdate;
-     } 
-      
+     scaleEquilibriumDistance(1.0-eqDistanceUpdate);
     }
     
     
@@ -385,7 +502,332 @@ void manageKeyboardInput() {
   
 }
 
+/* Saves the state of the simulation (see LayoutCheckpoint).  The state is copied
+   between two steps and written on a thread of its own, so the simulation carries on
+   while the file is written. */
+void checkpoint() {
+  if (checkpointing) {
+    return;
+  }
+  checkpointing = true;
+  lastCheckpoint = millis();
+  checkpointSteps = simThread.steps;
+  simThread.post(new Runnable() {
+    public void run() {
+      final LayoutCheckpoint checkpoint = LayoutCheckpoint.take(sim);
+      Thread writer = new Thread(new Runnable() {
+        public void run() {
+          try {
+            checkpoint.write(gr.checkpointFile());
+          } catch (IOException e) {
+            println("Could not save " + gr.checkpointFile() + ": " + e.getMessage());
+          }
+          checkpointing = false;
+        }
+      }, "checkpoint");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  });
+}
+
+/* Saves the graph with its layout as the edge list's snapshot (see GraphSnapshot).  Like
+   checkpoint(), it is copied between two steps, so the positions and the edges agree,
+   and written on a thread of its own. */
+void saveSnapshot() {
+  if (snapshotting) {
+    return;
+  }
+  snapshotting = true;
+  simThread.post(new Runnable() {
+    public void run() {
+      final GraphSnapshot.Contents snapshot = gr.takeSnapshot(true);
+      if (snapshot == null) {
+        snapshotting = false;
+        return;
+      }
+      Thread writer = new Thread(new Runnable() {
+        public void run() {
+          gr.writeSnapshot(snapshot);
+          snapshotting = false;
+        }
+      }, "snapshot");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  });
+}
+
+/* Picks up the last checkpoint of this graph, if there is one.  Called before the
+   simulation thread starts. */
+boolean resumeCheckpoint() {
+  File file = gr.checkpointFile();
+  if (!file.exists()) {
+    return false;
+  }
+  try {
+    LayoutCheckpoint checkpoint = LayoutCheckpoint.read(file);
+    int restored = checkpoint.restore(sim, gr.names);
+    for (Ball b : balls) {
+      if (b.isSelected) {
+        selectedBalls.add(b);
+      }
+    }
+    println("Resumed " + restored + " of " + balls.size() + " nodes from " + file);
+    return restored > 0;
+  } catch (IOException e) {
+    println("Could not read " + file + ": " + e.getMessage());
+    return false;
+  }
+}
+
+/* Starts the graph out from its layout in the cache, or from the last layout of its
+   edge list if it has changed since (see LayoutCache).  Called before the simulation
+   thread starts. */
+boolean warmStart() {
+  try {
+    int start = millis();
+    long key = LayoutCache.key(gr.names, physics.topology);
+    LayoutCache.Layout layout = layoutCache.find(key, gr.file());
+    if (layout == null) {
+      return false;
+    }
+    int restored = layout.apply(sim, gr.names);
+    println("Placed " + restored + " of " + balls.size() + " nodes from the cached layout of "
+      + (layout.key == key ? "this graph" : layout.source) + " in " + (millis() - start) + " ms");
+    return restored > 0;
+  } catch (IOException e) {
+    println("Could not read the layout cache: " + e.getMessage());
+    return false;
+  }
+}
+
+/* Saves the layout into the cache, on a thread of its own like checkpoint() */
+void cacheLayout() {
+  if (caching) {
+    return;
+  }
+  caching = true;
+  simThread.post(new Runnable() {
+    public void run() {
+      try {
+        final LayoutCache.Layout layout = LayoutCache.Layout.take(sim, gr.names, gr.file());
+        Thread writer = new Thread(new Runnable() {
+          public void run() {
+            try {
+              layoutCache.put(layout);
+            } catch (IOException e) {
+              println("Could not save the layout to " + layoutCache.directory + ": " + e.getMessage());
+            }
+            caching = false;
+          }
+        }, "layout-cache");
+        writer.setDaemon(true);
+        writer.start();
+      } catch (IOException e) {
+        println("Could not save the layout to " + layoutCache.directory + ": " + e.getMessage());
+        caching = false;
+      }
+    }
+  });
+}
+
+/* Processing calls this on the way out: one last checkpoint, and the layout into the
+   cache, written right away */
+void stop() {
+  if (simThread != null) {
+    /* Let a checkpoint, a layout or a snapshot that is being written finish first */
+    while (checkpointing || caching || snapshotting) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    LayoutCheckpoint checkpoint;
+    LayoutCache.Layout layout = null;
+    synchronized (simThread.stepLock) {
+      checkpoint = LayoutCheckpoint.take(sim);
+      try {
+        layout = LayoutCache.Layout.take(sim, gr.names, gr.file());
+      } catch (IOException e) {
+        println("Could not save the layout to " + layoutCache.directory + ": " + e.getMessage());
+      }
+    }
+    try {
+      checkpoint.write(gr.checkpointFile());
+    } catch (IOException e) {
+      println("Could not save " + gr.checkpointFile() + ": " + e.getMessage());
+    }
+    if (layout != null) {
+      try {
+        layoutCache.put(layout);
+      } catch (IOException e) {
+        println("Could not save the layout to " + layoutCache.directory + ": " + e.getMessage());
+      }
+    }
+  }
+  super.stop();
+}
+
+/* Changes the structure of the graph (see GraphReader.addEdge() and friends).  Edits can
+   be posted from any thread and are applied at the start of the next frame, on the
+   animation thread (which is the one walking the graph to draw it), while the
+   simulation is parked between two steps. */
+void editGraph(Runnable edit) {
+  graphEdits.add(edit);
+}
+
+void applyGraphEdits() {
+  if (graphEdits.isEmpty()) {
+    return;
+  }
+  synchronized (simThread.stepLock) {
+    Runnable edit = graphEdits.poll();
+    while (edit != null) {
+      edit.run();
+      edit = graphEdits.poll();
+    }
+    /* Fold the whole batch into the graph before anyone walks it again */
+    physics.topology.update();
+  }
+  simThread.resume();
+}
+
+/* Replaces the current layout with a multilevel one, which the simulation then refines.
+   The graph is copied between two steps and laid out on a thread of its own, so edits
+   and drawing go on meanwhile; the simulation stops stepping the layout that is about
+   to be replaced until the new one is copied back. */
+void multilevelLayout() {
+  if (layingOut) {
+    return;
+  }
+  layingOut = true;
+  simThread.post(new Runnable() {
+    public void run() {
+      optimizing = false;
+      final MultilevelLayout layout = new MultilevelLayout();
+      final Simulation copy = layout.copy(sim);
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          try {
+            layout.run(copy);
+            simThread.post(new Runnable() {
+              public void run() {
+                layout.copyBack(copy, sim);
+              }
+            });
+          } finally {
+            copy.parallelStepper.shutdown();
+            layingOut = false;
+            simThread.resume();
+          }
+        }
+      }, "multilevel-layout");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  });
+}
+
+void scaleEquilibriumDistance(final float factor) {
+  simThread.post(new Runnable() {
+    public void run() {
+      for (Ball b : balls) {
+        b.desiredEquilibriumDistance *= factor;
+      }
+      sim.wakeAll();
+    }
+  });
+  simThread.resume();
+}
+
 void keyPressed() {
+  if (key == 'z') {
+    simThread.post(new Runnable() {
+      public void run() {
+        sim.sleeping = !sim.sleeping;
+        sim.wakeAll();
+      }
+    });
+  }
+
+  if (key == 'm') {
+    simThread.post(new Runnable() {
+      public void run() {
+        sim.parallelStepping = !sim.parallelStepping;
+      }
+    });
+  }
+
+  if (key == 'l') {
+    multilevelLayout();
+  }
+
+  if (key == 'x') {
+    gr.edited = true;
+    editGraph(new Runnable() {
+      public void run() {
+        for (Ball b : new ArrayList<Ball>(selectedBalls)) {
+          gr.removeNode(b.name, sim);
+        }
+      }
+    });
+  }
+
+  if (key == 's') {
+    saveSnapshot();
+  }
+
+  if (key == 'k') {
+    checkpoint();
+  }
+
+  if (key == 'v') {
+    levelOfDetail = !levelOfDetail;
+    println(levelOfDetail ? "Drawing what there is room for" : "Drawing everything");
+  }
+
+  if (key == 'u') {
+    watcher.watching = !watcher.watching;
+    println(watcher.watching ? "Watching " + gr.filename : "Stopped watching " + gr.filename);
+  }
+
+  if (key == 'i') {
+    simThread.post(new Runnable() {
+      public void run() {
+        if (sim.integrator instanceof VerletIntegrator) {
+          sim.integrator = new EulerIntegrator();
+        } else {
+          sim.integrator = new VerletIntegrator();
+        }
+      }
+    });
+  }
+
+  if (key == 't') {
+    simThread.post(new Runnable() {
+      public void run() {
+        sim.adaptiveStep = !sim.adaptiveStep;
+        sim.stepController.reset();
+      }
+    });
+  }
+
+  if (key == 'b') {
+    simThread.post(new Runnable() {
+      public void run() {
+        if (sim.repulsionMode == Simulation.REPULSION_GRID) {
+          sim.repulsionMode = Simulation.REPULSION_BARNES_HUT;
+        } else if (sim.repulsionMode == Simulation.REPULSION_BARNES_HUT) {
+          sim.repulsionMode = Simulation.REPULSION_DIRECT;
+        } else {
+          sim.repulsionMode = Simulation.REPULSION_GRID;
+        }
+      }
+    });
+  }
+
   if (key == 'p') {
        // String pdfName = gr.filename.substring(0,gr.filename.length()-4) + ".pdf";
        displayPDFMessage = true;
@@ -423,51 +865,71 @@ void keyPressed() {
     } 
 }
 
+/* The simulation thread stops itself once the layout converges (see ConvergenceMonitor);
+   here we just sample its measurements for the overlay twice a second. */
 void evaluateSimulationTriggers() {
-  // println("Evaluating sim triggers");
-  if (millis()-lastRunTime > 500 && optimizing && frameCount > 300) {
-   // totalVel = computeTotalVelocity();
-   float maxVel = 0;
-   for (Ball b: balls) {
-    float thisVel = b.velocity.mag();
-    if (thisVel > maxVel) {
-     maxVel = thisVel; 
-    }
-   }
-   float allowableSpeedPerBall = 15;
-   lastRunTime = millis();
-   if (maxVel < allowableSpeedPerBall) {
-     /* Stop the simulation */
-     // println("Stopping simulation because maxVel < allowableSpeedPerBall");
-     // optimizing = false;
-   }
+  if (millis()-lastRunTime > 500) {
+    totalVel = simThread.monitor.totalSpeed;
+    lastRunTime = millis();
   }
 }
 
 void drawTextOverlays() {
+  ConvergenceMonitor monitor = simThread.monitor;
   fill(255);
-  text(totalVel + "px/frame",width/2.0,15);
+  text(nf(totalVel,1,2) + " px/s   KE " + nf(monitor.kineticEnergy,1,2)
+    + "   max step " + nf(monitor.maxDisplacement,1,3) + " px",width/2.0,15);
   
    /* If the node dynamics are being simulated (optimized), 
   then display the appropriate status message */
   fill(255);
   if (optimizing) {
-    text("Simulating",width/2,height-10);
+    String status = "Simulating";
+    if (sim.repulsionMode == Simulation.REPULSION_BARNES_HUT) {
+      status += " (Barnes-Hut)";
+    } else if (sim.repulsionMode == Simulation.REPULSION_GRID) {
+      status += " (grid)";
+    }
+    if (sim.integrator instanceof EulerIntegrator) {
+      status += " (Euler)";
+    }
+    if (sim.adaptiveStep) {
+      status += " - step x" + nf(sim.stepController.scale,1,2);
+    }
+    if (sim.sleeping) {
+      status += " - " + sim.activeCount + " of " + balls.size() + " awake";
+    }
+    text(status,width/2,height-10);
   } 
+  else if (monitor.converged) {
+    text("Converged in " + monitor.convergedIterations + " iterations ("
+      + nf(monitor.convergedSeconds,1,2) + " s)",width/2,height-10);
+  }
   else {
     text("Static",width/2,height-10);
   }
   
   textAlign(LEFT);
-  int yy = 110;
+  int yy = 220;
   text(" Directions:",5,height-(yy-=10));
   text(" d : resume",5,height-(yy-=10));
   text(" f : pause",5,height-(yy-=10));
   text(" q : expand nodes",5,height-(yy-=10));
   text(" a : tighten nodes",5,height-(yy-=10));
   text(" c : clear selection",5,height-(yy-=10));
+  text(" x : remove selected nodes",5,height-(yy-=10));
   text(" p : export to PDF",5,height-(yy-=10));
   text(" w : export dependencies of selected nodes",5,height-(yy-=10));
+  text(" b : cycle repulsion engine",5,height-(yy-=10));
+  text(" m : toggle multi-core stepping",5,height-(yy-=10));
+  text(" z : toggle sleeping of settled nodes",5,height-(yy-=10));
+  text(" l : multilevel re-layout",5,height-(yy-=10));
+  text(" i : switch integrator (Verlet / Euler)",5,height-(yy-=10));
+  text(" t : toggle adaptive time step",5,height-(yy-=10));
+  text(" u : toggle reloading the graph file when it changes",5,height-(yy-=10));
+  text(" s : save the layout with the graph's snapshot",5,height-(yy-=10));
+  text(" k : save a checkpoint (also every minute and on exit)",5,height-(yy-=10));
+  text(" v : toggle level of detail",5,height-(yy-=10));
   text("right click : explosion",5,height-(yy-=10));
   text("dragging left-click : selection",5,height-(yy-=10));
   /* Ownership label */
@@ -486,20 +948,37 @@ void drawTextOverlays() {
 
 
 
+/* Only the balls that can be under the mouse (the ones drawn last frame, see
+   displayBalls()) are tested, and only the balls that are hovered (hoveredBalls) are
+   let go of, so this costs what is on screen too.  The relatives that display() hovers
+   are let go of here every frame and hovered again as long as their ball is. */
 void detectHover() {
-  
-  PVector mousePos = new PVector(mouseX, mouseY);
- for (Ball b: balls) {
-   // If the ball center is within BALLSIZE square distance of the mouse (cheaper).
-  if (abs(mouseY-b.position.y) <= b.ballSize && abs(mouseX-b.position.x) <= b.ballSize
-      && PVector.dist(mousePos, b.position) <= b.ballSize) {
-      b.hover();
-  } else {
-      //if (!b.parentHovered) { 
-        b.noHover(); 
-      //}
+  int kept = 0;
+  for (int k = 0; k < hoveredBalls.size(); k++) {
+    Ball b = hoveredBalls.get(k);
+    if (b.id >= 0 && isUnderMouse(b)) {
+      hoveredBalls.set(kept++, b);
+    } else {
+      b.noHover();
+    }
   }
- } 
+  while (hoveredBalls.size() > kept) {
+    hoveredBalls.remove(hoveredBalls.size()-1);
+  }
+
+  for (int k = 0; k < visibleCount; k++) {
+    /* Balls removed by this frame's edits leave ids past the end */
+    if (visibleBalls[k] < balls.size() && isUnderMouse(balls.get(visibleBalls[k]))) {
+      balls.get(visibleBalls[k]).hover();
+    }
+  }
+}
+
+boolean isUnderMouse(Ball b) {
+  // If the ball center is within BALLSIZE square distance of the mouse (cheaper).
+  float dx = mouseX - b.getX();
+  float dy = mouseY - b.getY();
+  return abs(dy) <= b.ballSize && abs(dx) <= b.ballSize && dx*dx + dy*dy <= b.ballSize*b.ballSize;
 }
 
 boolean insidePolygon(PVector here, ArrayList<PVector> polygon) {
@@ -565,29 +1044,32 @@ void displaySelectedBalls() {
        fill(b.ballColor);
        strokeWeight(4);
        stroke(255,0,0);
-       PVector pos = (PVector) b.position;
+       PVector pos = b.getPosition();
        ellipse(pos.x, pos.y, b.ballSize, b.ballSize); 
   }
 }
 
-float computeTotalVelocity() {
- float velocity = 0; 
- for (Ball b : balls) {
-  velocity += b.velocity.mag();
- }
- return velocity;
-}
-
 void explode() {
   println("Boom!");
   PVector mousePos = new PVector(mouseX,mouseY); 
+  final Ball[] kicked = balls.toArray(new Ball[balls.size()]);
+  final float[] kickX = new float[balls.size()];
+  final float[] kickY = new float[balls.size()];
   for (int i = 0; i < balls.size(); i++) {
     Ball b = (Ball) balls.get(i);
-    PVector radius = PVector.sub(b.position,mousePos);
+    PVector radius = PVector.sub(b.getPosition(),mousePos);
     PVector e = new PVector(radius.x,radius.y);
     e.normalize();
     PVector newVel = PVector.mult(e,width*100/radius.mag());
-    b.velocity.add(newVel);
+    kickX[i] = newVel.x;
+    kickY[i] = newVel.y;
   }
+  simThread.post(new Runnable() {
+    public void run() {
+      for (int i = 0; i < kickX.length; i++) {
+        kicked[i].addVelocity(kickX[i], kickY[i]);
+      }
+    }
+  });
 }
-
+
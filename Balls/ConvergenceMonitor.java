@@ -0,0 +1,111 @@
+/*
+Decides when the layout has settled, so the simulation can stop burning a core.
+
+After every step it measures the kinetic energy of the network, the largest distance
+any ball moved and the slope of the energy, averaged over the last WINDOW steps.  The
+layout counts as converged once all three are below their tolerances:
+   * mean kinetic energy per ball < energyTolerance
+   * largest displacement in one step < displacementTolerance (px)
+   * |energy slope| / energy < slopeTolerance (per step), i.e. the energy is no
+     longer going anywhere
+
+The monitor is updated on the simulation thread.  reset() starts a new run, which is
+what the sketch does whenever the user pokes the simulation back to life.
+*/
+public class ConvergenceMonitor {
+  float energyTolerance;
+  float displacementTolerance;
+  float slopeTolerance;
+  int minSteps;           // never stop before this many steps into a run
+  boolean report;         // print the iterations and time on convergence
+
+  int WINDOW = 50;
+  float[] energies;       // ring buffer of the last WINDOW energies
+  int filled;
+
+  /* Latest measurements */
+  volatile float kineticEnergy;
+  volatile float maxDisplacement;
+  volatile float energySlope;
+  volatile float totalSpeed;
+
+  /* Current run */
+  long iterations;
+  long startMillis;
+  volatile boolean converged;
+  volatile long convergedIterations;
+  volatile float convergedSeconds;
+
+  ConvergenceMonitor() {
+    energyTolerance = 0.5f;
+    displacementTolerance = 0.05f;
+    slopeTolerance = 0.001f;
+    minSteps = 100;
+    report = true;
+    energies = new float[WINDOW];
+    reset();
+  }
+
+  void reset() {
+    filled = 0;
+    iterations = 0;
+    startMillis = System.currentTimeMillis();
+    converged = false;
+  }
+
+  /* Call after Simulation.step() (px/py hold the new positions and nx/ny the old ones).
+     Returns true on the step the layout converges. */
+  boolean update(PhysicsStore store) {
+    float energy = 0;
+    float speed = 0;
+    float maxDisp2 = 0;
+    for (int i = 0; i < store.count; i++) {
+      float v2 = store.vx[i]*store.vx[i] + store.vy[i]*store.vy[i];
+      energy += 0.5f*store.mass[i]*v2;
+      speed += (float) Math.sqrt(v2);
+      float dx = store.px[i] - store.nx[i];
+      float dy = store.py[i] - store.ny[i];
+      maxDisp2 = Math.max(maxDisp2, dx*dx + dy*dy);
+    }
+    return update(store.count, energy, speed, (float) Math.sqrt(maxDisp2));
+  }
+
+  /* The same, from measurements made by the caller: the kinetic energy and summed speed
+     of n balls, and the largest distance one of them moved in the last step */
+  boolean update(int n, float energy, float speed, float displacement) {
+    kineticEnergy = energy;
+    totalSpeed = speed;
+    maxDisplacement = displacement;
+
+    /* Slope over the window: the energy WINDOW steps ago is in the slot we overwrite */
+    int slot = (int) (iterations % WINDOW);
+    boolean full = filled == WINDOW;
+    float oldest = energies[slot];
+    energies[slot] = energy;
+    if (!full) {
+      filled++;
+    }
+    iterations++;
+    if (!full) {
+      energySlope = 0;
+      return false;
+    }
+    energySlope = (energy - oldest)/WINDOW;
+
+    if (converged || iterations < minSteps) {
+      return false;
+    }
+    boolean calm = energy/Math.max(n, 1) < energyTolerance
+      && maxDisplacement < displacementTolerance
+      && Math.abs(energySlope) <= slopeTolerance*Math.max(energy, 1e-6f);
+    if (calm) {
+      converged = true;
+      convergedIterations = iterations;
+      convergedSeconds = (System.currentTimeMillis() - startMillis)/1000.0f;
+      if (report) {
+        System.out.println("Converged after " + convergedIterations + " iterations in " + convergedSeconds + " s");
+      }
+    }
+    return calm;
+  }
+}
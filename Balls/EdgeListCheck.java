@@ -0,0 +1,109 @@
+import java.io.*;
+
+/*
+Checks that the edge list parsers read names as UTF-8 and refuse names that are not.
+
+   java -cp <sketch classes> EdgeListCheck
+
+writes small edge lists to temporary files and reads each of them with EdgeListParser
+and with a ParallelEdgeListParser cut into chunks of a few bytes, mapped and through a
+buffer.  Names with multi-byte characters must come out whole and distinct, and a file
+with bytes that are not UTF-8 in a name must fail with an IOException that gives the
+line (an invalid name must never be cut short and merged with another one).  It
+prints every case and exits with status 1 if any of them went wrong.
+*/
+public class EdgeListCheck {
+  static boolean ok = true;
+
+  public static void main(String[] args) throws IOException {
+    /* Valid UTF-8: 2, 3 and 4 byte characters, and names that differ only in them */
+    byte[] valid = concat(utf8("caf\u00e9->x\ncaf\u00e8->y\n\u65e5\u672c->\ud83d\ude00\n"),
+      utf8("plain->caf\u00e9\n"));
+    String[] names = {"caf\u00e9", "x", "caf\u00e8", "y", "\u65e5\u672c", "\ud83d\ude00", "plain"};
+
+    /* Not UTF-8: Latin-1 bytes on line 3, then a stray continuation byte on line 4 */
+    byte[] invalid = concat(utf8("a->b\nc->d\n"), new byte[] {'c', 'a', 'f', (byte) 0xe9, '-', '>', 'x', '\n',
+      'q', (byte) 0xff, 'z', '-', '>', 'w', '\n'});
+
+    File file = File.createTempFile("edges", ".txt");
+    file.deleteOnExit();
+    for (int variant = 0; variant < 4; variant++) {
+      boolean parallel = variant >= 2;
+      boolean mapped = variant%2 == 0;
+      String name = (parallel ? "parallel" : "serial") + (mapped ? ", mapped" : ", buffered");
+
+      write(file, valid);
+      NodeDictionary dictionary = new NodeDictionary();
+      try {
+        parser(dictionary, parallel, mapped).parse(file, new Ignore());
+        boolean same = dictionary.size() == names.length;
+        for (int i = 0; same && i < names.length; i++) {
+          same = dictionary.name(i).equals(names[i]);
+        }
+        report(name + ", UTF-8 names", same, dictionary.size() + " names");
+      } catch (IOException e) {
+        report(name + ", UTF-8 names", false, e.getMessage());
+      }
+
+      write(file, invalid);
+      try {
+        parser(new NodeDictionary(), parallel, mapped).parse(file, new Ignore());
+        report(name + ", bytes that are not UTF-8", false, "no error");
+      } catch (IOException e) {
+        report(name + ", bytes that are not UTF-8", e.getMessage().endsWith("line 3 is not valid UTF-8"),
+          e.getMessage());
+      }
+    }
+    if (!ok) {
+      System.out.println("FAILED");
+      System.exit(1);
+    }
+    System.out.println("OK: names are read as UTF-8");
+  }
+
+  static EdgeListParser parser(NodeDictionary dictionary, boolean parallel, boolean mapped) {
+    EdgeListParser parser;
+    if (parallel) {
+      ParallelEdgeListParser p = new ParallelEdgeListParser(dictionary, "->", 4);
+      p.chunkSize = 8;   // a chunk or two per line
+      parser = p;
+    } else {
+      parser = new EdgeListParser(dictionary, "->");
+    }
+    parser.mapped = mapped;
+    return parser;
+  }
+
+  static void report(String name, boolean passed, String detail) {
+    System.out.println(name + ": " + (passed ? "ok" : "WRONG") + " (" + detail + ")");
+    ok &= passed;
+  }
+
+  static byte[] utf8(String s) {
+    return s.getBytes(GraphSnapshot.UTF8);
+  }
+
+  static byte[] concat(byte[] a, byte[] b) {
+    byte[] c = new byte[a.length + b.length];
+    System.arraycopy(a, 0, c, 0, a.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
+
+  static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  static class Ignore implements EdgeListParser.Handler {
+    public void node(int id) {
+    }
+
+    public void edge(int from, int to) {
+    }
+  }
+}
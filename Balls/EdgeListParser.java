@@ -0,0 +1,263 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+
+/*
+Reads an "A->B" edge list straight from the bytes of the file.
+
+The file is memory-mapped a window at a time and scanned for newlines and the
+delimiter; each name is copied into one reusable char buffer and looked up in a
+NodeDictionary, which only makes a String the first time it meets a name.  So there is
+no String per line, no split() and no logging, and the ids go straight to a Handler
+(the graph builder).  Names are UTF-8 (plain ASCII is copied without decoding), and a
+name that is not valid UTF-8 stops the parse with the number of its line
+(NotUTF8): decoding it anyway would cut it short or blur it into other names.
+
+A line without the delimiter names a ball without links; blank lines are skipped.
+Windows end on a line boundary: the unfinished line at the end of one window starts
+the next.  With mapped = false the file is read through one buffer instead, for
+callers that must leave the file free to be rewritten (some systems refuse to change
+a file while it is mapped).
+*/
+public class EdgeListParser {
+  /* What to do with what the parser finds */
+  public interface Handler {
+    /* A name seen for the first time: ids come in order 0, 1, 2... */
+    void node(int id);
+    void edge(int from, int to);
+  }
+
+  /* A name that is not valid UTF-8, on this line (counted from the start of the parse) */
+  static class NotUTF8 extends IOException {
+    long line;
+
+    NotUTF8(long _line) {
+      super("line " + _line + " is not valid UTF-8");
+      line = _line;
+    }
+  }
+
+  NodeDictionary names;
+  byte[] delimiter;
+  boolean mapped;
+  int window;             // bytes mapped (or read) at a time
+
+  /* Totals of the last parse() */
+  long bytes;
+  long lines;
+  long edges;
+  long nanos;
+
+  Name name;              // the name being looked up
+  CharBuffer text;        // the same chars, for the decoder
+  CharsetDecoder decoder;
+
+  EdgeListParser(NodeDictionary _names, String _delimiter) {
+    names = _names;
+    delimiter = _delimiter.getBytes(Charset.forName("UTF-8"));
+    mapped = true;
+    window = 64 << 20;
+    name = new Name(256);
+    text = CharBuffer.wrap(name.chars);
+    decoder = Charset.forName("UTF-8").newDecoder();
+  }
+
+  void parse(File file, Handler handler) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      parse(channel, 0, channel.size(), handler);
+    } catch (NotUTF8 e) {
+      throw new IOException(file + ": " + e.getMessage());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /* Parses bytes from..to of the file; from must be the start of a line */
+  void parse(FileChannel channel, long from, long to, Handler handler) throws IOException {
+    long start = System.nanoTime();
+    lines = 0;
+    edges = 0;
+    if (mapped) {
+      long position = from;
+      int length = window;
+      while (position < to) {
+        long n = Math.min(length, to - position);
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, n);
+        boolean last = position + n == to;
+        int done = scan(buffer, (int) n, last, handler);
+        if (done == 0 && !last) {
+          /* One line longer than a whole window */
+          length *= 2;
+        }
+        position += done;
+      }
+    } else {
+      ByteBuffer buffer = ByteBuffer.allocate(Math.min(window, 1 << 20));
+      long position = from;
+      boolean last = false;
+      while (!last) {
+        if (!buffer.hasRemaining()) {
+          /* One line longer than the whole buffer */
+          ByteBuffer bigger = ByteBuffer.allocate(2*buffer.capacity());
+          buffer.flip();
+          bigger.put(buffer);
+          buffer = bigger;
+        }
+        buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (to - position)));
+        int read = channel.read(buffer, position);
+        if (read > 0) {
+          position += read;
+        }
+        last = read == -1 || position == to;
+        int n = buffer.position();
+        int done = scan(buffer, n, last, handler);
+        /* Keep the unfinished line for the next read */
+        buffer.limit(n);
+        buffer.position(done);
+        buffer.compact();
+      }
+    }
+    bytes = to - from;
+    nanos = System.nanoTime() - start;
+  }
+
+  /* Handles every complete line of buffer[0..n) (and the last one, if last), and
+     returns how many bytes that was */
+  int scan(ByteBuffer buffer, int n, boolean last, Handler handler) throws NotUTF8 {
+    byte first = delimiter[0];
+    int lineStart = 0;
+    int arrow = -1;
+    for (int i = 0; i < n; i++) {
+      byte c = buffer.get(i);
+      if (c == '\n') {
+        line(buffer, lineStart, arrow, i, handler);
+        lineStart = i+1;
+        arrow = -1;
+      } else if (c == first && arrow == -1 && isDelimiter(buffer, i, n)) {
+        arrow = i;
+      }
+    }
+    if (last && lineStart < n) {
+      line(buffer, lineStart, arrow, n, handler);
+      lineStart = n;
+    }
+    return lineStart;
+  }
+
+  boolean isDelimiter(ByteBuffer buffer, int i, int n) {
+    if (i + delimiter.length > n) {
+      return false;
+    }
+    for (int k = 1; k < delimiter.length; k++) {
+      if (buffer.get(i+k) != delimiter[k]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void line(ByteBuffer buffer, int start, int arrow, int end, Handler handler) throws NotUTF8 {
+    lines++;
+    if (arrow == -1) {
+      id(buffer, start, end, handler, true);
+      return;
+    }
+    int from = id(buffer, start, arrow, handler, false);
+    int to = id(buffer, arrow + delimiter.length, end, handler, false);
+    handler.edge(from, to);
+    edges++;
+  }
+
+  /* The id of the name in buffer[start..end), -1 if skipBlank and it is blank */
+  int id(ByteBuffer buffer, int start, int end, Handler handler, boolean skipBlank) throws NotUTF8 {
+    int length = end - start;
+    if (name.chars.length < length) {
+      name = new Name(Math.max(length, 2*name.chars.length));
+      text = CharBuffer.wrap(name.chars);
+    }
+    char[] chars = name.chars;
+    boolean ascii = true;
+    for (int i = 0; i < length; i++) {
+      byte b = buffer.get(start+i);
+      ascii &= b >= 0;
+      chars[i] = (char) b;
+    }
+    if (!ascii) {
+      ByteBuffer bytes = buffer.duplicate();
+      bytes.limit(end);
+      bytes.position(start);
+      text.clear();
+      decoder.reset();
+      if (decoder.decode(bytes, text, true).isError() || decoder.flush(text).isError()) {
+        throw new NotUTF8(lines);
+      }
+      length = text.position();
+    }
+    name.length = length;
+    if (skipBlank && isBlank()) {
+      return -1;
+    }
+
+    int size = names.size();
+    int id = names.intern(name, 0, length);
+    if (id == size) {
+      handler.node(id);
+    }
+    return id;
+  }
+
+  boolean isBlank() {
+    for (int i = 0; i < name.length; i++) {
+      if (!NodeDictionary.isSpace(name.chars[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  float megabytesPerSecond() {
+    return bytes/1e6f/Math.max(nanos/1e9f, 1e-9f);
+  }
+
+  float edgesPerSecond() {
+    return edges/Math.max(nanos/1e9f, 1e-9f);
+  }
+
+  String report() {
+    return lines + " lines, " + edges + " edges, "
+      + String.format("%.1f MB in %.2f s (%.1f MB/s, %d edges/s)", bytes/1e6f, nanos/1e9f,
+        megabytesPerSecond(), Math.round(edgesPerSecond()));
+  }
+
+  /* A reusable char array seen as a CharSequence: the dictionary reads names through
+     charAt(), which on this is a plain array read */
+  static class Name implements CharSequence {
+    char[] chars;
+    int length;
+
+    Name(int capacity) {
+      chars = new char[capacity];
+    }
+
+    public int length() {
+      return length;
+    }
+
+    public char charAt(int i) {
+      return chars[i];
+    }
+
+    public CharSequence subSequence(int start, int end) {
+      return new String(chars, start, end - start);
+    }
+
+    public String toString() {
+      return new String(chars, 0, length);
+    }
+  }
+}
@@ -0,0 +1,12 @@
+/* Semi-implicit Euler, the way the sketch has always moved (see Integrator) */
+public class EulerIntegrator implements Integrator {
+  public void move(PhysicsStore store, int i, float dt, float lastDt) {
+    float ax = store.fx[i]/store.mass[i];
+    float ay = store.fy[i]/store.mass[i];
+
+    store.vx[i] += ax*dt;
+    store.vy[i] += ay*dt;
+    store.nx[i] = store.px[i] + store.vx[i]*dt;
+    store.ny[i] = store.py[i] + store.vy[i]*dt;
+  }
+}
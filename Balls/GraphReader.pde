@@ -1,8 +1,16 @@
 class GraphReader {
 
   String filename;
-  HashMap<String,Ball> hm;
+  NodeDictionary names;   // name <-> id, the same id as the ball's
+  ArrayList<Ball> nodeList;   // every ball in the order it was created (index == id)
+  PhysicsStore store;
   String dlm = "->";
+  boolean positioned;   // the balls are where a snapshot had them, not at random
+  boolean edited;       // balls were removed by hand: the graph no longer matches the file
+  /* The version of the edge list the graph was last read from (see GraphWatcher), which
+     is what a snapshot of it holds */
+  volatile long sourceLength;
+  volatile long sourceModified;
   GraphReader() {
   }
 
@@ -23,71 +31,227 @@ class GraphReader {
   }
 
   void buildGraph() {
-    hm = new HashMap<String,Ball>();
+    File file = file();
+    if (readSnapshot(file)) {
+      return;
+    }
+    names = new NodeDictionary();
+    nodeList = new ArrayList<Ball>();
+    store = new PhysicsStore();
+    positioned = false;
+    /* Before reading, so a rewrite half way through leaves the snapshot out of date */
+    sourceLength = file.length();
+    sourceModified = file.lastModified();
 
-    BufferedReader reader = createReader(filename);
-    String tline = "";
+    EdgeListParser parser = new ParallelEdgeListParser(names, dlm, Runtime.getRuntime().availableProcessors());
+    /* The watcher (see GraphWatcher) wants to pick up rewrites of this file, and some
+       systems will not let a mapped file be rewritten: read it through a buffer */
+    parser.mapped = false;
+    boolean complete = true;
     try {
-    while (tline != null) {
-      tline = reader.readLine();
-      if (tline != null) {
-      
-      String[] nodes = split(tline,dlm);
-
-      println("N=" + nodes.length + " : " + nodes[0] + " " + dlm + " " + nodes[1]);
-      
-      Ball b1;
-      Ball b2;
-      if (!hm.containsKey(trim(nodes[0]))) {
-        b1 = new Ball(new PVector(random(width), random(height)), new PVector(0,0));
-        b1.setName(trim(nodes[0]));
-      } else {
-        b1 = hm.get(trim(nodes[0]));
-      }
-      
-      /* NOTE TO SELF : ALLOW UN-CONNECTED BALLS to exist without children or dependencies (coded as A->A) */
-      
-      if (!hm.containsKey(trim(nodes[1]))) {
-        b2 = new Ball(new PVector(random(width), random(height)), new PVector(0,0) );
-        b2.setName(trim(nodes[1]));
-      } else {
-        b2 = hm.get(trim(nodes[1]));
-      }
-      
-      b1.addAttractiveBall(b2);
-      b1.addChild(b2);
-      
-      b2.addAttractiveBall(b1);
-      b1.addAttractiveBall(b2);
-      
-      hm.put(nodes[0],b1);
-      hm.put(nodes[1],b2);
-      }
+      /* Ball ids and dictionary ids are handed out in the same order, so they agree */
+      parser.parse(file, new EdgeListParser.Handler() {
+        public void node(int id) {
+          newBall(id);
+        }
+        public void edge(int from, int to) {
+          nodeList.get(from).addChild(nodeList.get(to));
+        }
+      });
+    } catch (IOException e) {
+      /* e.g. a name that is not UTF-8 (see EdgeListParser): keep what came before it */
+      println("Could not read all of " + file + ": " + e.getMessage());
+      complete = false;
+    }
+    /* One pass from the edges above to the CSR arrays (see Topology) */
+    store.topology.update();
+    println("Read " + nodeList.size() + " nodes and " + store.topology.edges + " edges: "
+      + parser.report());
+    /* So that the next launch need not parse it again (a part of the file is no
+       snapshot of it) */
+    if (complete) {
+      writeSnapshot(false);
+    }
+  }
+
+  /* The edge list (a relative name is relative to the sketch) */
+  File file() {
+    File file = new File(filename);
+    if (!file.isAbsolute()) {
+      file = new File(sketchPath(filename));
+    }
+    return file;
+  }
+
+  /* The binary copy of the graph kept next to the edge list (see GraphSnapshot) */
+  File snapshotFile() {
+    return new File(file().getPath() + ".snapshot");
+  }
+
+  /* Where the simulation's checkpoints go (see LayoutCheckpoint) */
+  File checkpointFile() {
+    return new File(file().getPath() + ".checkpoint");
+  }
+
+  /* Builds the graph from the snapshot of file, if there is one that matches it */
+  boolean readSnapshot(File file) {
+    File snapshotFile = snapshotFile();
+    if (!snapshotFile.exists()) {
+      return false;
     }
-    for (Ball b : hm.values()) {
-     ArrayList<Ball> attBalls = b.getAttractiveBalls();
-     for (Ball other : hm.values()) {
-      if (!b.equals(other)) {
-        if (!attBalls.contains(other)) {
-          b.addRepulsiveBall(other);
+    int start = millis();
+    names = new NodeDictionary();
+    nodeList = new ArrayList<Ball>();
+    store = new PhysicsStore();
+    try {
+      GraphSnapshot snapshot = new GraphSnapshot(snapshotFile);
+      try {
+        if (!snapshot.isSnapshotOf(file)) {
+          println(snapshotFile + " is out of date, reading " + file);
+          return false;
+        }
+        snapshot.readNames(names);
+        float[][] positions = snapshot.readPositions();
+        positioned = positions != null;
+        for (int i = 0; i < names.size(); i++) {
+          if (positioned) {
+            Ball b = new Ball(store, new PVector(positions[0][i], positions[1][i]), new PVector(0,0));
+            b.setName(names.name(i));
+            nodeList.add(b);
+          } else {
+            newBall(i);
+          }
         }
+        snapshot.readTopology(store.topology);
+        sourceLength = snapshot.sourceLength;
+        sourceModified = snapshot.sourceModified;
+      } finally {
+        snapshot.close();
       }
-     } 
+    } catch (IOException e) {
+      println("Could not read " + snapshotFile + " (" + e.getMessage() + "), reading " + file);
+      return false;
     }
-    
-    
+    println("Opened " + nodeList.size() + " nodes and " + store.topology.edges + " edges from "
+      + snapshotFile + " in " + (millis() - start) + " ms" + (positioned ? ", laid out" : ""));
+    return true;
+  }
+
+  /* Saves the graph, and the balls' positions if withPositions, as the snapshot of the
+     edge list.  Must be called between two simulation steps (see SimulationThread.post()). */
+  void writeSnapshot(boolean withPositions) {
+    GraphSnapshot.Contents snapshot = takeSnapshot(withPositions);
+    if (snapshot != null) {
+      writeSnapshot(snapshot);
+    }
+  }
+
+  /* The first half of writeSnapshot(): copies the graph, between two simulation steps.
+     null if the graph no longer matches any version of the edge list. */
+  GraphSnapshot.Contents takeSnapshot(boolean withPositions) {
+    if (edited) {
+      println("Balls were removed by hand, so the graph no longer matches " + filename + ": no snapshot saved");
+      return null;
+    }
+    return GraphSnapshot.take(sourceLength, sourceModified, names, store.topology,
+      withPositions ? store.px : null, withPositions ? store.py : null);
+  }
+
+  /* The second half: writes the copy, from any thread */
+  void writeSnapshot(GraphSnapshot.Contents snapshot) {
+    try {
+      int start = millis();
+      GraphSnapshot.write(snapshotFile(), snapshot);
+      println("Saved " + snapshotFile() + (snapshot.px != null ? " with the layout" : "") + " in " + (millis() - start) + " ms");
     } catch (IOException e) {
-     e.printStackTrace(); 
+      println("Could not save " + snapshotFile() + ": " + e.getMessage());
+    }
+  }
+
+  /* The ball named by line[start..end) (surrounding spaces ignored), created on first
+     sight.  Ball ids and dictionary ids are handed out in the same order, so they agree. */
+  Ball ball(String line, int start, int end) {
+    int id = names.intern(line, start, end);
+    if (id == nodeList.size()) {
+      newBall(id);
     }
+    return nodeList.get(id);
+  }
+
+  /* A ball, at a random spot, for the name that was just given id */
+  void newBall(int id) {
+    Ball b = new Ball(store, new PVector(random(width), random(height)), new PVector(0,0));
+    b.setName(names.name(id));
+    nodeList.add(b);
   }
   
+  /* The balls in id order, so that balls.get(i) is the ball at index i of the store.  This
+     is the live list: the edits below keep it in step with the store. */
   ArrayList<Ball> getGraph() {
-    ArrayList<Ball> balls = new ArrayList<Ball>();
-    
-    for (Ball b : hm.values()) {
-      balls.add(b);
+    return nodeList;
+  }
+
+  /*
+  Live edits, by node name.  Each one costs the Topology time in proportion to the
+  edit, not to the graph (see applyGraphEdits()), and every other ball stays where it
+  is.  They may only be called between two simulation steps (see editGraph()).
+  */
+
+  /* A new ball starts out next to a ball picked at random, so it joins the layout
+     rather than wherever it was made */
+  Ball addNode(String name, Simulation sim) {
+    boolean isNew = names.find(name) == -1;
+    Ball b = ball(name, 0, name.length());
+    if (isNew && nodeList.size() > 1) {
+      int other = sim.random.nextInt(nodeList.size()-1);
+      sim.placeNear(b, nodeList.get(other < b.id ? other : other+1));
     }
-    return balls;
-  }  
+    return b;
+  }
+
+  void addEdge(String from, String to, Simulation sim) {
+    boolean newFrom = names.find(from) == -1;
+    boolean newTo = names.find(to) == -1;
+    Ball b1 = addNode(from, sim);
+    Ball b2 = addNode(to, sim);
+    sim.link(b1, b2);
+    /* New balls start out next to whatever they are attached to (when both are new,
+       the first one stays where addNode() put it) */
+    if (newFrom && !newTo) {
+      sim.placeNear(b1, b2);
+    }
+    if (newTo) {
+      sim.placeNear(b2, b1);
+    }
+  }
+
+  /* The spring stays as long as there is an edge either way (see Topology) */
+  void removeEdge(String from, String to, Simulation sim) {
+    int a = names.find(from);
+    int b = names.find(to);
+    if (a == -1 || b == -1) {
+      return;
+    }
+    sim.unlink(nodeList.get(a), nodeList.get(b));
+  }
+
+  void removeNode(String name, Simulation sim) {
+    int id = names.find(name);
+    if (id == -1) {
+      return;
+    }
+    Ball b = nodeList.get(id);
+    /* preDragBallPositions goes with selectedBalls, entry for entry */
+    int k = selectedBalls.indexOf(b);
+    if (k != -1) {
+      selectedBalls.remove(k);
+      if (k < preDragBallPositions.size()) {
+        preDragBallPositions.remove(k);
+      }
+    }
+    /* Both move the last ball into the gap, so the ids keep agreeing */
+    names.remove(id);
+    sim.removeNode(b);
+  }
 }
-
+
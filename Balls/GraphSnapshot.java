@@ -0,0 +1,402 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+A graph saved in binary, to be opened again without parsing the edge list.
+
+The text edge list stays the format graphs are exchanged in; a snapshot is written
+next to it once it has been parsed and holds everything reading it produced:
+
+   header         64 bytes: magic, version, flags, the sizes of the sections, and the
+                  length and modification time of the edge list
+   hashes         int per ball: NodeDictionary.hash() of the name
+   nameStart      int per ball + 1: the names are nameBytes[nameStart[i] .. nameStart[i+1])
+   nameBytes      the names, UTF-8
+   px, py         float per ball, only if the snapshot has positions
+   outStart, outTarget, inStart, inSource, linkStart, linkTarget
+                  the CSR arrays of the Topology, as they are
+
+Every section starts on an 8 byte boundary and everything is little-endian, the byte
+order of the machines this runs on, so opening a snapshot is a memory map and a bulk
+copy per section; even the dictionary is refilled without hashing a name.
+
+The header remembers the length and modification time of the edge list it was made
+from, as it was when it was last read into the graph, and a snapshot that no longer
+matches its edge list is not used (see isSnapshotOf()).  A damaged one (sizes that do
+not add up, offsets out of order, edges to no ball) is refused with an IOException
+before anything is sized by it, so the edge list is read instead.
+
+Saving is take(), which copies what goes into the file between two simulation steps,
+and write(), which encodes and writes the copy and can run on a thread of its own.
+*/
+public class GraphSnapshot {
+  static final int MAGIC = 0x42534e50;   // "BSNP"
+  static final int VERSION = 1;
+  static final int HEADER = 64;
+  static final int HAS_POSITIONS = 1;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  File file;
+  RandomAccessFile raf;
+  FileChannel channel;
+  long position;      // where the next section starts while reading
+
+  /* Header */
+  int flags;
+  int count;          // balls
+  int edges;          // out-edges (entries of outTarget and inSource)
+  int links;          // entries of linkTarget
+  long nameBytes;
+  long sourceLength;
+  long sourceModified;
+
+  /* Opens a snapshot and reads its header */
+  GraphSnapshot(File _file) throws IOException {
+    file = _file;
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+    if (channel.size() < HEADER) {
+      close();
+      throw new IOException(file + " is not a graph snapshot");
+    }
+    ByteBuffer header = map(HEADER);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      close();
+      throw new IOException(file + " is not a version " + VERSION + " graph snapshot");
+    }
+    flags = header.getInt(8);
+    count = header.getInt(12);
+    edges = header.getInt(16);
+    links = header.getInt(20);
+    nameBytes = header.getLong(24);
+    sourceLength = header.getLong(32);
+    sourceModified = header.getLong(40);
+    /* A cut short or damaged file must not get as far as sizing arrays by the header */
+    if (count < 0 || count == Integer.MAX_VALUE || edges < 0 || links < 0 || nameBytes < 0
+        || nameBytes > Integer.MAX_VALUE || channel.size() != size()) {
+      close();
+      throw new IOException(file + " is damaged: its header does not match its size");
+    }
+  }
+
+  /* How big a file with the header's sizes is */
+  long size() {
+    long ints = aligned(4L*(count+1));
+    long total = HEADER + aligned(4L*count) + ints + aligned(nameBytes);
+    if (hasPositions()) {
+      total += 2*aligned(4L*count);
+    }
+    return total + 3*ints + 2*aligned(4L*edges) + aligned(4L*links);
+  }
+
+  static long aligned(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  boolean hasPositions() {
+    return (flags & HAS_POSITIONS) != 0;
+  }
+
+  /* Whether this was made from the edge list as it is now */
+  boolean isSnapshotOf(File source) {
+    return source.length() == sourceLength && source.lastModified() == sourceModified;
+  }
+
+  /* The next section, of this many bytes */
+  ByteBuffer map(long bytes) throws IOException {
+    ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+    position += aligned(bytes);
+    return b.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  int[] ints(int n) throws IOException {
+    int[] a = new int[n];
+    map(4L*n).asIntBuffer().get(a);
+    return a;
+  }
+
+  float[] floats(int n) throws IOException {
+    float[] a = new float[n];
+    map(4L*n).asFloatBuffer().get(a);
+    return a;
+  }
+
+  /* The sections, in the order they are in the file: names, then positions (the balls
+     can be made at this point), then topology */
+
+  /* Fills an empty dictionary with the names, in id order */
+  void readNames(NodeDictionary names) throws IOException {
+    int[] hashes = ints(count);
+    int[] nameStart = ints(count+1);
+    ByteBuffer bytes = map(nameBytes);
+    checkRuns(nameStart, (int) nameBytes, "names");
+    names.reserve(count);
+    byte[] name = new byte[256];
+    for (int i = 0; i < count; i++) {
+      int length = nameStart[i+1] - nameStart[i];
+      if (name.length < length) {
+        name = new byte[Math.max(length, 2*name.length)];
+      }
+      bytes.position(nameStart[i]);
+      bytes.get(name, 0, length);
+      String s = new String(name, 0, length, UTF8);
+      names.intern(s, 0, s.length(), hashes[i]);
+      if (names.size() != i+1) {
+        throw new IOException(file + " is damaged: it names two balls " + s);
+      }
+    }
+  }
+
+  /* start[] must run from 0 up to end without going down, as CSR offsets do */
+  void checkRuns(int[] start, int end, String what) throws IOException {
+    if (start[0] != 0 || start[count] != end) {
+      throw new IOException(file + " is damaged: the " + what + " do not add up");
+    }
+    for (int i = 0; i < count; i++) {
+      if (start[i+1] < start[i]) {
+        throw new IOException(file + " is damaged: the " + what + " do not add up");
+      }
+    }
+  }
+
+  /* Every entry of target must be a ball */
+  void checkTargets(int[] target, String what) throws IOException {
+    for (int j : target) {
+      if (j < 0 || j >= count) {
+        throw new IOException(file + " is damaged: the " + what + " lead to no ball");
+      }
+    }
+  }
+
+  /* {px, py}, or null if the snapshot has no positions */
+  float[][] readPositions() throws IOException {
+    if (!hasPositions()) {
+      return null;
+    }
+    float[] px = floats(count);
+    float[] py = floats(count);
+    return new float[][] {px, py};
+  }
+
+  /* The edges of the balls already in the store */
+  void readTopology(Topology topology) throws IOException {
+    int[] outStart = ints(count+1);
+    int[] outTarget = ints(edges);
+    int[] inStart = ints(count+1);
+    int[] inSource = ints(edges);
+    int[] linkStart = ints(count+1);
+    int[] linkTarget = ints(links);
+    checkRuns(outStart, edges, "out-edges");
+    checkRuns(inStart, edges, "in-edges");
+    checkRuns(linkStart, links, "links");
+    checkTargets(outTarget, "out-edges");
+    checkTargets(inSource, "in-edges");
+    checkTargets(linkTarget, "links");
+    topology.load(outStart, outTarget, inStart, inSource, linkStart, linkTarget);
+  }
+
+  void close() throws IOException {
+    /* The mappings stay valid until they are garbage collected */
+    channel.close();
+    raf.close();
+  }
+
+  /* What write() saves, copied out of the live graph */
+  static class Contents {
+    long sourceLength;
+    long sourceModified;
+    int count;
+    String[] names;
+    int[] hashes;
+    float[] px;       // null: no positions
+    float[] py;
+    int[] outStart;
+    int[] outTarget;
+    int[] inStart;
+    int[] inSource;
+    int[] linkStart;
+    int[] linkTarget;
+  }
+
+  /*
+  Copies the graph read from the edge list of the given length and modification time:
+  its names, its edges (as they were at the last Topology.update()) and, unless px is
+  null, the positions of its balls.  Only a few array copies, so it can be called
+  between two simulation steps.
+  */
+  static Contents take(long sourceLength, long sourceModified, NodeDictionary names, Topology topology,
+      float[] px, float[] py) {
+    Contents c = new Contents();
+    c.sourceLength = sourceLength;
+    c.sourceModified = sourceModified;
+    int count = names.size();
+    c.count = count;
+    c.names = new String[count];
+    for (int i = 0; i < count; i++) {
+      c.names[i] = names.name(i);
+    }
+    c.hashes = Arrays.copyOf(names.hashes, count);
+    if (px != null) {
+      c.px = Arrays.copyOf(px, count);
+      c.py = Arrays.copyOf(py, count);
+    }
+    if (topology.hasDelta()) {
+      /* Edits since the arrays were built: a copy that has them folded in, in fresh
+         arrays */
+      topology = topology.compacted();
+      c.outStart = topology.outStart;
+      c.outTarget = topology.outTarget;
+      c.inStart = topology.inStart;
+      c.inSource = topology.inSource;
+      c.linkStart = topology.linkStart;
+      c.linkTarget = topology.linkTarget;
+    } else {
+      c.outStart = Arrays.copyOf(topology.outStart, count+1);
+      c.outTarget = Arrays.copyOf(topology.outTarget, topology.outStart[count]);
+      c.inStart = Arrays.copyOf(topology.inStart, count+1);
+      c.inSource = Arrays.copyOf(topology.inSource, topology.inStart[count]);
+      c.linkStart = Arrays.copyOf(topology.linkStart, count+1);
+      c.linkTarget = Arrays.copyOf(topology.linkTarget, topology.linkStart[count]);
+    }
+    return c;
+  }
+
+  /*
+  Writes a snapshot of what take() copied.  The file is written under a temporary name
+  and then renamed, so a snapshot that is there is always complete.
+  */
+  static void write(File file, Contents c) throws IOException {
+    int count = c.count;
+    int[] nameStart = new int[count+1];
+    long total = 0;
+    byte[][] encoded = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      encoded[i] = c.names[i].getBytes(UTF8);
+      total += encoded[i].length;
+      if (total > Integer.MAX_VALUE) {
+        throw new IOException("Too many bytes of names for one snapshot");
+      }
+      nameStart[i+1] = (int) total;
+    }
+
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temp);
+    try {
+      Writer out = new Writer(stream.getChannel());
+      ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(c.px != null ? HAS_POSITIONS : 0);
+      header.putInt(count);
+      header.putInt(c.outStart[count]);
+      header.putInt(c.linkStart[count]);
+      header.putLong(total);
+      header.putLong(c.sourceLength);
+      header.putLong(c.sourceModified);
+      out.bytes(header.array(), 0, HEADER);
+
+      out.ints(c.hashes, count);
+      out.ints(nameStart, count+1);
+      for (int i = 0; i < count; i++) {
+        out.bytes(encoded[i], 0, encoded[i].length);
+      }
+      out.align();
+      if (c.px != null) {
+        out.floats(c.px, count);
+        out.floats(c.py, count);
+      }
+      out.ints(c.outStart, count+1);
+      out.ints(c.outTarget, c.outStart[count]);
+      out.ints(c.inStart, count+1);
+      out.ints(c.inSource, c.inStart[count]);
+      out.ints(c.linkStart, count+1);
+      out.ints(c.linkTarget, c.linkStart[count]);
+      out.flush();
+    } finally {
+      stream.close();
+    }
+    replace(temp, file);
+  }
+
+  /* Renames temp to file, in place of whatever file was */
+  static void replace(File temp, File file) throws IOException {
+    /* Some systems will not rename over an existing file */
+    file.delete();
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Could not write " + file);
+    }
+  }
+
+  /* Little-endian sections through one buffer, each padded to 8 bytes */
+  static class Writer {
+    FileChannel channel;
+    ByteBuffer buffer;
+    long written;
+
+    Writer(FileChannel _channel) {
+      channel = _channel;
+      buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void ints(int[] a, int n) throws IOException {
+      for (int k = 0; k < n; ) {
+        if (buffer.remaining() < 4) {
+          flush();
+        }
+        int m = Math.min(n - k, buffer.remaining()/4);
+        buffer.asIntBuffer().put(a, k, m);
+        buffer.position(buffer.position() + 4*m);
+        k += m;
+      }
+      align();
+    }
+
+    void floats(float[] a, int n) throws IOException {
+      for (int k = 0; k < n; ) {
+        if (buffer.remaining() < 4) {
+          flush();
+        }
+        int m = Math.min(n - k, buffer.remaining()/4);
+        buffer.asFloatBuffer().put(a, k, m);
+        buffer.position(buffer.position() + 4*m);
+        k += m;
+      }
+      align();
+    }
+
+    void bytes(byte[] a, int from, int n) throws IOException {
+      while (n > 0) {
+        if (!buffer.hasRemaining()) {
+          flush();
+        }
+        int m = Math.min(n, buffer.remaining());
+        buffer.put(a, from, m);
+        from += m;
+        n -= m;
+      }
+    }
+
+    /* Pads the section just written to a multiple of 8 bytes */
+    void align() throws IOException {
+      while (((written + buffer.position()) & 7) != 0) {
+        if (!buffer.hasRemaining()) {
+          flush();
+        }
+        buffer.put((byte) 0);
+      }
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        written += channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
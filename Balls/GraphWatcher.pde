@@ -0,0 +1,187 @@
+/*
+Watches the graph file and applies changes to it to the running simulation.
+
+A background thread checks the file twice a second.  Once it has changed, and has
+stopped changing (so a file that is still being written is not read half way), the
+thread reads it, diffs its edges against the previous version and posts only the
+added and removed edges (and nodes) as one graph edit (see editGraph()).  Everything
+else keeps its place, so the layout survives the reload.
+
+The file is read like the first time (a ParallelEdgeListParser, UTF-8 from the bytes),
+into a dictionary of its own, whose names are then looked up in the watcher's
+dictionary.  That one gives every name it ever saw an id for good, whatever the balls'
+ids are doing meanwhile, so the versions are compared as sets of id pairs packed in a
+long, and only the changes are turned back into names.
+
+The first version is taken from the graph as it was loaded, so edits made in the
+sketch (removing nodes with 'x') stay until the file itself changes those edges.
+*/
+class GraphWatcher implements Runnable {
+  File file;
+  String dlm;
+  Thread thread;
+  volatile boolean alive;
+  volatile boolean watching;
+  long interval = 500;   // ms between checks
+
+  long lastModified;
+  long lastLength;
+  NodeDictionary names;  // every name seen, by the watcher's own ids
+  LongSet edges;         // key(from, to) of the edges last seen
+  boolean[] present;     // by id: the name was in the last version
+  int[] idOf;            // while reading: the id of each name read, in names
+
+  GraphWatcher(GraphReader gr) {
+    file = gr.file();
+    dlm = gr.dlm;
+    lastModified = file.lastModified();
+    lastLength = file.length();
+    /* The balls in id order, so the watcher's ids start out as the balls' ids */
+    ArrayList<Ball> balls = gr.getGraph();
+    Topology t = gr.store.topology;
+    names = new NodeDictionary();
+    names.reserve(balls.size());
+    edges = new LongSet(t.edges);
+    present = new boolean[Math.max(16, balls.size())];
+    idOf = new int[16];
+    for (Ball b : balls) {
+      present[names.intern(b.name)] = true;
+    }
+    for (Ball b : balls) {
+      for (int k = t.firstOut(b.id); k != Topology.END; k = t.nextOut(b.id, k)) {
+        edges.add(key(b.id, t.out(k)));
+      }
+    }
+    watching = true;
+  }
+
+  void start() {
+    alive = true;
+    thread = new Thread(this, "graph-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    alive = false;
+  }
+
+  public void run() {
+    boolean pending = false;
+    while (alive) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long modified = file.lastModified();
+      long length = file.length();
+      if (modified != lastModified || length != lastLength) {
+        /* Still being written: look again next time */
+        lastModified = modified;
+        lastLength = length;
+        pending = true;
+      } else if (pending && watching && modified != 0) {
+        pending = false;
+        reload();
+      }
+    }
+  }
+
+  /* An edge as one long; never 0, as a ball's edge to itself is not kept (see LongSet) */
+  long key(int from, int to) {
+    return ((long) from << 32) | to;
+  }
+
+  void reload() {
+    /* Before reading, like GraphReader.buildGraph() */
+    final long length = file.length();
+    final long modified = file.lastModified();
+    final LongSet newEdges = new LongSet(edges.size());
+    final NodeDictionary version = new NodeDictionary();
+    EdgeListParser parser = new ParallelEdgeListParser(version, dlm, Runtime.getRuntime().availableProcessors());
+    /* Reading through a buffer leaves the file free to be rewritten (see GraphReader) */
+    parser.mapped = false;
+    try {
+      parser.parse(file, new EdgeListParser.Handler() {
+        public void node(int id) {
+          if (id == idOf.length) {
+            idOf = Arrays.copyOf(idOf, 2*id);
+          }
+          String name = version.name(id);
+          idOf[id] = names.intern(name, 0, name.length(), version.hashes[id]);
+        }
+        public void edge(int from, int to) {
+          if (from != to) {
+            newEdges.add(key(idOf[from], idOf[to]));
+          }
+        }
+      });
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    boolean[] newPresent = new boolean[Math.max(16, names.size())];
+    for (int k = 0; k < version.size(); k++) {
+      newPresent[idOf[k]] = true;
+    }
+
+    /* Two names per edge: from, to */
+    final ArrayList<String> removedEdges = new ArrayList<String>();
+    final ArrayList<String> addedEdges = new ArrayList<String>();
+    final ArrayList<String> removedNames = new ArrayList<String>();
+    final ArrayList<String> addedNames = new ArrayList<String>();
+    for (long e : edges.keys) {
+      if (e != 0 && !newEdges.contains(e)) {
+        removedEdges.add(names.name((int) (e >>> 32)));
+        removedEdges.add(names.name((int) e));
+      }
+    }
+    for (long e : newEdges.keys) {
+      if (e != 0 && !edges.contains(e)) {
+        addedEdges.add(names.name((int) (e >>> 32)));
+        addedEdges.add(names.name((int) e));
+      }
+    }
+    for (int i = 0; i < names.size(); i++) {
+      boolean was = i < present.length && present[i];
+      if (was && !newPresent[i]) {
+        removedNames.add(names.name(i));
+      } else if (!was && newPresent[i]) {
+        addedNames.add(names.name(i));
+      }
+    }
+    edges = newEdges;
+    present = newPresent;
+    if (removedEdges.isEmpty() && addedEdges.isEmpty() && removedNames.isEmpty() && addedNames.isEmpty()) {
+      /* Same graph: a snapshot of it is a snapshot of this version too */
+      gr.sourceLength = length;
+      gr.sourceModified = modified;
+      return;
+    }
+    println("Reloaded " + file.getName() + ": +" + addedEdges.size()/2 + " -" + removedEdges.size()/2
+      + " edges, +" + addedNames.size() + " -" + removedNames.size() + " nodes");
+
+    editGraph(new Runnable() {
+      public void run() {
+        for (int k = 0; k < removedEdges.size(); k += 2) {
+          gr.removeEdge(removedEdges.get(k), removedEdges.get(k+1), sim);
+        }
+        for (String n : removedNames) {
+          gr.removeNode(n, sim);
+        }
+        /* Edges first, so that new nodes on an edge start next to their neighbours
+           (see GraphReader.addEdge()); what is left are nodes on their own */
+        for (int k = 0; k < addedEdges.size(); k += 2) {
+          gr.addEdge(addedEdges.get(k), addedEdges.get(k+1), sim);
+        }
+        for (String n : addedNames) {
+          gr.addNode(n, sim);
+        }
+        /* The graph is this version of the file now */
+        gr.sourceLength = length;
+        gr.sourceModified = modified;
+      }
+    });
+  }
+}
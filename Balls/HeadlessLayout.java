@@ -0,0 +1,424 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+Lays out a graph without a display: no window, no file dialog, no drawing.
+
+   java -cp <sketch classes> HeadlessLayout edges.txt [options]
+
+reads an edge list in the same "A->B" format as the sketch, runs the same force model
+(Simulation) as fast as the machine allows until the layout converges or a limit is
+hit, and writes one "name<TAB>x<TAB>y" line per ball, in UTF-8 (as the names are read).
+
+Options:
+   -o FILE            where to write the coordinates (default: <edge list>.xy)
+   -n ITERATIONS      stop after this many steps (default 100000)
+   -s SECONDS         stop after this much time
+   -e TOLERANCE       mean kinetic energy per ball at convergence (see ConvergenceMonitor)
+   -r ENGINE          grid, barnes-hut or direct (default grid)
+   -j THREADS         worker threads, for reading the edge list and for the steps
+                      (default: every core)
+   -m on|off          multilevel layout first (default: on for MultilevelLayout.THRESHOLD balls or more)
+   --seed N           seed for the random starting positions
+   --mapped FILE      keep the graph and the layout in FILE, memory-mapped, instead of on
+                      the heap (for graphs too big for it, see MappedStore).  Uses
+                      MappedLayout: the grid, no multilevel layout and a single thread,
+                      so -r and -m do not go with it.
+   --checkpoint FILE  carry on from the layout saved in FILE, if there is one (see
+                      LayoutCheckpoint), with the engine and the rest of the settings
+                      it was saved with, save it there every minute and at the end
+   --cache DIR        start from the layout of the graph in the layout cache DIR, if it
+                      is there (or from the last one of the same edge list), and save the
+                      layout there at the end (see LayoutCache).  Sleeping is on when it
+                      was found, so the balls placed from it stay put until something
+                      near them moves
+
+The physics classes are plain Java (not sketch tabs) precisely so this can run: the
+sketch's PApplet needs a display just to be loaded.
+*/
+public class HeadlessLayout {
+  String input;
+  String output;
+  long maxIterations;
+  float maxSeconds;
+  float energyTolerance;
+  int repulsionMode;
+  int threads;
+  int multilevel;       // -1: decide by size, 0: off, 1: on
+  long seed;
+  String mapped;
+  String checkpoint;
+  volatile boolean checkpointing;   // one is being written in the background
+  String cache;
+
+  PhysicsStore store;
+  ArrayList<Node> nodes;
+
+  NodeDictionary names;   // name <-> ball id
+
+  /* --mapped */
+  MappedStore mappedStore;
+  int[] degree;         // while loading: edge ends per ball, then where each run fills next
+  long adjacency;
+
+  HeadlessLayout() {
+    maxIterations = 100000;
+    maxSeconds = Float.MAX_VALUE;
+    energyTolerance = -1;
+    repulsionMode = Simulation.REPULSION_GRID;
+    threads = Runtime.getRuntime().availableProcessors();
+    multilevel = -1;
+    seed = System.currentTimeMillis();
+  }
+
+  public static void main(String[] args) {
+    HeadlessLayout layout = new HeadlessLayout();
+    try {
+      layout.parseArguments(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println("usage: HeadlessLayout <edge list> [-o file] [-n iterations] [-s seconds] [-e tolerance]");
+      System.err.println("                      [-r grid|barnes-hut|direct] [-j threads] [-m on|off] [--seed n]");
+      System.err.println("                      [--mapped file | --checkpoint file --cache dir]");
+      System.exit(2);
+    }
+    try {
+      layout.run();
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  void parseArguments(String[] args) {
+    boolean engineGiven = false;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("-")) {
+        if (input != null) {
+          throw new IllegalArgumentException("More than one edge list: " + arg);
+        }
+        input = arg;
+        continue;
+      }
+      if (i+1 == args.length) {
+        throw new IllegalArgumentException("Missing value for " + arg);
+      }
+      String value = args[++i];
+      try {
+        if (arg.equals("-o")) {
+          output = value;
+        } else if (arg.equals("-n")) {
+          maxIterations = Long.parseLong(value);
+        } else if (arg.equals("-s")) {
+          maxSeconds = Float.parseFloat(value);
+        } else if (arg.equals("-e")) {
+          energyTolerance = Float.parseFloat(value);
+        } else if (arg.equals("-r")) {
+          engineGiven = true;
+          if (value.equals("grid")) {
+            repulsionMode = Simulation.REPULSION_GRID;
+          } else if (value.equals("barnes-hut")) {
+            repulsionMode = Simulation.REPULSION_BARNES_HUT;
+          } else if (value.equals("direct")) {
+            repulsionMode = Simulation.REPULSION_DIRECT;
+          } else {
+            throw new IllegalArgumentException("Unknown repulsion engine: " + value);
+          }
+        } else if (arg.equals("-j")) {
+          threads = Math.max(1, Integer.parseInt(value));
+        } else if (arg.equals("-m")) {
+          multilevel = value.equals("on") ? 1 : 0;
+        } else if (arg.equals("--seed")) {
+          seed = Long.parseLong(value);
+        } else if (arg.equals("--mapped")) {
+          mapped = value;
+        } else if (arg.equals("--checkpoint")) {
+          checkpoint = value;
+        } else if (arg.equals("--cache")) {
+          cache = value;
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Not a number: " + arg + " " + value);
+      }
+    }
+    if (input == null) {
+      throw new IllegalArgumentException("No edge list given");
+    }
+    if (mapped != null && checkpoint != null) {
+      throw new IllegalArgumentException("--checkpoint does not work with --mapped");
+    }
+    if (mapped != null && cache != null) {
+      throw new IllegalArgumentException("--cache does not work with --mapped");
+    }
+    if (mapped != null && engineGiven) {
+      throw new IllegalArgumentException("-r does not work with --mapped (it always uses the grid)");
+    }
+    if (mapped != null && multilevel != -1) {
+      throw new IllegalArgumentException("-m does not work with --mapped (it has no multilevel layout)");
+    }
+    if (output == null) {
+      output = input + ".xy";
+    }
+  }
+
+  void run() throws IOException {
+    if (mapped != null) {
+      runMapped();
+      return;
+    }
+    long start = System.nanoTime();
+    load();
+    System.out.println("Read " + nodes.size() + " balls from " + input + " in " + seconds(start) + " s");
+
+    /* Leave the balls plenty of room: a settled graph covers about 1.5 to 2 equilibrium
+       distances (40 px) times sqrt(balls) on a side */
+    float side = 4*40*(float) Math.sqrt(Math.max(nodes.size(), 1));
+    Random random = new Random(seed);
+    for (int i = 0; i < store.count; i++) {
+      store.px[i] = side*(0.25f + 0.5f*random.nextFloat());
+      store.py[i] = side*(0.25f + 0.5f*random.nextFloat());
+    }
+
+    Simulation sim = new Simulation(store, nodes, new ParallelStepper(threads));
+    sim.repulsionMode = repulsionMode;
+    sim.setBounds(side, side);
+
+    boolean resumed = false;
+    if (checkpoint != null && new File(checkpoint).exists()) {
+      int restored = LayoutCheckpoint.read(new File(checkpoint)).restore(sim, names);
+      System.out.println("Resumed " + restored + " of " + nodes.size() + " balls from " + checkpoint);
+      resumed = restored > 0;
+    }
+    LayoutCache layoutCache = cache != null ? new LayoutCache(new File(cache), 256L << 20) : null;
+    if (!resumed && layoutCache != null) {
+      long cacheStart = System.nanoTime();
+      long key = LayoutCache.key(names, store.topology);
+      LayoutCache.Layout layout = layoutCache.find(key, new File(input));
+      if (layout != null) {
+        int restored = layout.apply(sim, names);
+        System.out.println("Placed " + restored + " of " + nodes.size() + " balls from the cached layout of "
+          + (layout.key == key ? "this graph" : layout.source) + " in " + seconds(cacheStart) + " s");
+        resumed = restored > 0;
+        /* apply() leaves the setting alone, and nothing else here uses it */
+        sim.sleeping = resumed;
+      }
+    }
+
+    if (!resumed && (multilevel == 1 || (multilevel == -1 && nodes.size() >= MultilevelLayout.THRESHOLD))) {
+      MultilevelLayout ml = new MultilevelLayout();
+      ml.rng = new Random(seed);
+      ml.run(sim);
+    }
+
+    ConvergenceMonitor monitor = new ConvergenceMonitor();
+    monitor.report = false;
+    if (energyTolerance >= 0) {
+      monitor.energyTolerance = energyTolerance;
+    }
+    long stepStart = System.nanoTime();
+    long lastReport = stepStart;
+    long lastCheckpoint = stepStart;
+    long iterations = 0;
+    boolean converged = false;
+    while (iterations < maxIterations && seconds(stepStart) < maxSeconds) {
+      sim.step();
+      iterations++;
+      if (monitor.update(store)) {
+        converged = true;
+        break;
+      }
+      if (checkpoint != null && System.nanoTime() - lastCheckpoint > 60000000000L && !checkpointing) {
+        lastCheckpoint = System.nanoTime();
+        checkpointInBackground(sim);
+      }
+      if (System.nanoTime() - lastReport > 5000000000L) {
+        lastReport = System.nanoTime();
+        System.out.println(iterations + " iterations, " + rate(iterations, stepStart) + " it/s, kinetic energy "
+          + monitor.kineticEnergy + ", largest step " + monitor.maxDisplacement + " px");
+      }
+    }
+    System.out.println((converged ? "Converged after " : "Stopped after ") + iterations + " iterations in "
+      + seconds(stepStart) + " s (" + rate(iterations, stepStart) + " it/s, " + seconds(start) + " s in total)");
+
+    write();
+    System.out.println("Wrote " + output);
+    if (checkpoint != null) {
+      while (checkpointing) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      LayoutCheckpoint.take(sim).write(new File(checkpoint));
+      System.out.println("Saved " + checkpoint);
+    }
+    if (layoutCache != null) {
+      layoutCache.put(LayoutCache.Layout.take(sim, names, new File(input)));
+      System.out.println("Saved the layout to " + cache);
+    }
+    sim.parallelStepper.shutdown();
+  }
+
+  /* Copies the state of the simulation now and writes it while the steps go on */
+  void checkpointInBackground(Simulation sim) {
+    final LayoutCheckpoint state = LayoutCheckpoint.take(sim);
+    checkpointing = true;
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          state.write(new File(checkpoint));
+        } catch (IOException e) {
+          System.err.println("Could not save " + checkpoint + ": " + e.getMessage());
+        }
+        checkpointing = false;
+      }
+    }, "checkpoint");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /* The same run with the graph and its layout in a MappedStore */
+  void runMapped() throws IOException {
+    long start = System.nanoTime();
+    loadMapped();
+    System.out.println("Read " + mappedStore.count + " balls and " + mappedStore.adjacency/2 + " edges from "
+      + input + " into " + mapped + " in " + seconds(start) + " s");
+
+    float side = 4*40*(float) Math.sqrt(Math.max(mappedStore.count, 1));
+    Random random = new Random(seed);
+    for (int i = 0; i < mappedStore.count; i++) {
+      mappedStore.px.put(i, side*(0.25f + 0.5f*random.nextFloat()));
+      mappedStore.py.put(i, side*(0.25f + 0.5f*random.nextFloat()));
+    }
+    MappedLayout layout = new MappedLayout(mappedStore);
+    layout.setBounds(side, side);
+
+    ConvergenceMonitor monitor = new ConvergenceMonitor();
+    monitor.report = false;
+    if (energyTolerance >= 0) {
+      monitor.energyTolerance = energyTolerance;
+    }
+    long stepStart = System.nanoTime();
+    long lastReport = stepStart;
+    long iterations = 0;
+    boolean converged = false;
+    while (iterations < maxIterations && seconds(stepStart) < maxSeconds) {
+      layout.step();
+      iterations++;
+      if (monitor.update(mappedStore.count, layout.kineticEnergy, layout.totalSpeed, layout.maxDisplacement)) {
+        converged = true;
+        break;
+      }
+      if (System.nanoTime() - lastReport > 5000000000L) {
+        lastReport = System.nanoTime();
+        System.out.println(iterations + " iterations, " + rate(iterations, stepStart) + " it/s, kinetic energy "
+          + monitor.kineticEnergy + ", largest step " + monitor.maxDisplacement + " px");
+      }
+    }
+    System.out.println((converged ? "Converged after " : "Stopped after ") + iterations + " iterations in "
+      + seconds(stepStart) + " s (" + rate(iterations, stepStart) + " it/s, " + seconds(start) + " s in total)");
+
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), GraphSnapshot.UTF8)));
+    try {
+      for (int i = 0; i < mappedStore.count; i++) {
+        writer.println(names.name(i) + "\t" + mappedStore.px.get(i) + "\t" + mappedStore.py.get(i));
+      }
+    } finally {
+      writer.close();
+    }
+    System.out.println("Wrote " + output);
+    mappedStore.close();
+  }
+
+  /* Reads the edge list twice: once to number the names and count every ball's edges,
+     which sizes the store and its CSR runs, and once to fill the runs in.  No edge is
+     ever held on the heap. */
+  void loadMapped() throws IOException {
+    names = new NodeDictionary();
+    EdgeListParser parser = new ParallelEdgeListParser(names, "->", threads);
+    degree = new int[16];
+    adjacency = 0;
+    parser.parse(new File(input), new EdgeListParser.Handler() {
+      public void node(int id) {
+        if (degree.length == id) {
+          degree = Arrays.copyOf(degree, 2*id);
+        }
+      }
+      public void edge(int a, int b) {
+        degree[a]++;
+        degree[b]++;
+        adjacency += 2;
+      }
+    });
+    System.out.println("Parsed " + parser.report());
+    int n = names.size();
+    MappedStore.checkSize(n, adjacency);
+    mappedStore = new MappedStore(new File(mapped), n, (int) adjacency);
+    /* degree[] becomes the fill pointer of every run */
+    int offset = 0;
+    for (int i = 0; i < n; i++) {
+      mappedStore.offsets.put(i, offset);
+      int d = degree[i];
+      degree[i] = offset;
+      offset += d;
+    }
+    mappedStore.offsets.put(n, offset);
+
+    /* Every name is known by now, so the second pass meets no new ones */
+    parser.parse(new File(input), new EdgeListParser.Handler() {
+      public void node(int id) {
+      }
+      public void edge(int a, int b) {
+        mappedStore.targets.put(degree[a]++, b);
+        mappedStore.targets.put(degree[b]++, a);
+      }
+    });
+    degree = null;
+    mappedStore.deduplicate();
+  }
+
+  /* Builds one ball per name in the edge list and attaches the two ends of every edge */
+  void load() throws IOException {
+    store = new PhysicsStore();
+    nodes = new ArrayList<Node>();
+    names = new NodeDictionary();
+    EdgeListParser parser = new ParallelEdgeListParser(names, "->", threads);
+    /* The dictionary hands out ids in the same order as the store */
+    parser.parse(new File(input), new EdgeListParser.Handler() {
+      public void node(int id) {
+        Node b = new Node(store, 0, 0, 0, 0);
+        b.setName(names.name(id));
+        nodes.add(b);
+      }
+      public void edge(int a, int b) {
+        store.topology.addEdge(a, b);
+      }
+    });
+    System.out.println("Parsed " + parser.report());
+  }
+
+  void write() throws IOException {
+    PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), GraphSnapshot.UTF8)));
+    try {
+      for (int i = 0; i < nodes.size(); i++) {
+        writer.println(nodes.get(i).name + "\t" + store.px[i] + "\t" + store.py[i]);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  static float seconds(long since) {
+    return (System.nanoTime() - since)/1e9f;
+  }
+
+  static long rate(long iterations, long since) {
+    return Math.round(iterations/Math.max(seconds(since), 1e-9f));
+  }
+}
@@ -0,0 +1,16 @@
+/*
+Integrators: how a ball moves during one step once the force on it is known.
+
+Simulation.integrate() calls move() for every active ball that is not held by the
+mouse, with the ball's time step (Ball.playbackSpeed times Simulation.stepSize) and
+the time step it used the step before.  move() writes the new position into
+store.nx/ny and updates the velocity in store.vx/vy.  It only ever touches slot i,
+so the balls can be moved from several threads at once.
+
+   * EulerIntegrator is semi-implicit Euler, the way the sketch has always moved.
+   * VerletIntegrator is velocity Verlet, which is second order and stays stable with
+     much larger steps on stiff springs (see StepController).
+*/
+public interface Integrator {
+  void move(PhysicsStore store, int i, float dt, float lastDt);
+}
@@ -0,0 +1,177 @@
+/*
+Compares the grid's repulsion kernel with the pairwise one it replaced, and the
+Barnes-Hut kernel with the direct one.
+
+   java -cp <sketch classes> KernelComparison [sizes...] [-n passes] [--seed n]
+
+builds, for every size (default 5000 20000 80000 balls), the random graph StepBenchmark
+steps, computes the forces on every ball with SpatialGrid.addRepulsion() and then with
+addRepulsionPairwise() (SpatialGrid.pairwise), from the same positions, and prints the
+fastest force pass of each (default 5 passes) and the largest difference between the
+two forces.  It exits with status 1 if a force differs by more than TOLERANCE times the
+largest force of the graph: the kernels sum the same terms in another order, so only
+rounding may tell them apart.
+
+It then checks the Barnes-Hut kernel (QuadTree.addRepulsion()) against the direct one
+(REPULSION_DIRECT), for the sizes up to DIRECT_LIMIT: the direct kernel tests every pair.
+These are compared on a crowded lattice whose balls are attached to balls a few rows
+away, so attractive balls sit inside the cells the quadtree treats as one body.  The
+quadtree only approximates, so the forces differ, but the difference should have no
+direction: it exits with status 1 if, on average over the springs shorter than the
+cutoff radius, it pushes the ball away from its attractive ball by more than
+BIAS_TOLERANCE, which is what counting the attractive balls as repulsive would do.
+*/
+public class KernelComparison {
+  static final double TOLERANCE = 1e-4;
+  static final int DIRECT_LIMIT = 20000;
+  static final double BIAS_TOLERANCE = 5;   // force units; Fmax is 100
+
+  public static void main(String[] args) {
+    java.util.ArrayList<Integer> sizes = new java.util.ArrayList<Integer>();
+    int passes = 5;
+    long seed = 1;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-n") && i+1 < args.length) {
+          passes = Math.max(1, Integer.parseInt(args[++i]));
+        } else if (args[i].equals("--seed") && i+1 < args.length) {
+          seed = Long.parseLong(args[++i]);
+        } else {
+          sizes.add(Integer.parseInt(args[i]));
+        }
+      }
+    } catch (NumberFormatException e) {
+      System.err.println("usage: KernelComparison [sizes...] [-n passes] [--seed n]");
+      System.exit(2);
+    }
+    if (sizes.isEmpty()) {
+      sizes.add(5000);
+      sizes.add(20000);
+      sizes.add(80000);
+    }
+
+    boolean same = true;
+    ParallelStepper stepper = new ParallelStepper(1);
+    for (int n : sizes) {
+      Simulation sim = StepBenchmark.randomGraph(n, seed, stepper);
+      sim.repulsionMode = Simulation.REPULSION_GRID;
+      /* A few steps so the balls are not spread evenly any more, then the grid and the
+         active list of the positions both kernels start from */
+      for (int k = 0; k < 3; k++) {
+        sim.step();
+      }
+      sim.store.topology.update();
+      sim.spatialGrid.build(sim.store, sim.balls);
+      sim.collectActive();
+
+      /* Taken in turns, so the JIT has warmed both up by the same time */
+      long grid = Long.MAX_VALUE;
+      long pairwise = Long.MAX_VALUE;
+      float[] fx = new float[n];
+      float[] fy = new float[n];
+      for (int k = 0; k < passes; k++) {
+        sim.spatialGrid.pairwise = false;
+        grid = Math.min(grid, time(sim));
+        System.arraycopy(sim.store.fx, 0, fx, 0, n);
+        System.arraycopy(sim.store.fy, 0, fy, 0, n);
+        sim.spatialGrid.pairwise = true;
+        pairwise = Math.min(pairwise, time(sim));
+      }
+
+      double largest = 0;
+      double difference = 0;
+      for (int i = 0; i < n; i++) {
+        largest = Math.max(largest, Math.max(Math.abs(fx[i]), Math.abs(fy[i])));
+        difference = Math.max(difference, Math.max(Math.abs(fx[i] - sim.store.fx[i]), Math.abs(fy[i] - sim.store.fy[i])));
+      }
+      double relative = largest > 0 ? difference/largest : 0;
+      System.out.println(n + " balls: pairwise " + String.format("%.1f", pairwise/1e6) + " ms, grid "
+        + String.format("%.1f", grid/1e6) + " ms per force pass, largest difference "
+        + String.format("%.2g", relative) + " of the largest force");
+      if (relative > TOLERANCE) {
+        same = false;
+      }
+
+      if (n <= DIRECT_LIMIT && !compareBarnesHut(n, seed, stepper)) {
+        same = false;
+      }
+    }
+    stepper.shutdown();
+    if (!same) {
+      System.out.println("FAILED: the kernels disagree");
+      System.exit(1);
+    }
+    System.out.println("OK: the kernels agree");
+  }
+
+  /* Compares the Barnes-Hut forces with the direct ones on latticeGraph(n), returns false
+     if they are biased along the springs */
+  static boolean compareBarnesHut(int n, long seed, ParallelStepper stepper) {
+    Simulation sim = latticeGraph(n, seed, stepper);
+    sim.store.topology.update();
+    sim.collectActive();
+    sim.repulsionMode = Simulation.REPULSION_DIRECT;
+    long direct = time(sim);
+    float[] fx = java.util.Arrays.copyOf(sim.store.fx, n);
+    float[] fy = java.util.Arrays.copyOf(sim.store.fy, n);
+    sim.repulsionMode = Simulation.REPULSION_BARNES_HUT;
+    sim.quadTree.build(sim.store, sim.balls);
+    long barnesHut = time(sim);
+
+    /* The difference along every spring shorter than the cutoff, pointing away from
+       the attractive ball */
+    PhysicsStore store = sim.store;
+    Topology t = store.topology;
+    double bias = 0;
+    int springs = 0;
+    for (int i = 0; i < n; i++) {
+      float cutoff = sim.balls.get(i).repulsionRadius();
+      for (int m = t.firstLink(i); m != Topology.END; m = t.nextLink(i, m)) {
+        int j = t.link(m);
+        float rx = store.px[i] - store.px[j];
+        float ry = store.py[i] - store.py[j];
+        float dist = (float) Math.sqrt(rx*rx + ry*ry);
+        if (dist < cutoff && dist > 0) {
+          bias += ((store.fx[i] - fx[i])*rx + (store.fy[i] - fy[i])*ry)/dist;
+          springs++;
+        }
+      }
+    }
+    bias = springs > 0 ? bias/springs : 0;
+    System.out.println(n + " balls: direct " + String.format("%.1f", direct/1e6) + " ms, Barnes-Hut "
+      + String.format("%.1f", barnesHut/1e6) + " ms per force pass, bias along the springs "
+      + String.format("%.2f", bias));
+    return Math.abs(bias) <= BIAS_TOLERANCE;
+  }
+
+  /* n balls on a square lattice 20 px apart, each attached to a random ball at most 4
+     rows and columns away */
+  static Simulation latticeGraph(int n, long seed, ParallelStepper stepper) {
+    java.util.Random random = new java.util.Random(seed);
+    int w = (int) Math.ceil(Math.sqrt(Math.max(n, 1)));
+    float spacing = 20;
+    PhysicsStore store = new PhysicsStore(n);
+    java.util.ArrayList<Node> nodes = new java.util.ArrayList<Node>(n);
+    for (int i = 0; i < n; i++) {
+      nodes.add(new Node(store, spacing*(i%w + random.nextFloat()), spacing*(i/w + random.nextFloat()), 0, 0));
+    }
+    for (int i = 0; i < n; i++) {
+      int col = i%w + random.nextInt(9) - 4;
+      int row = i/w + random.nextInt(9) - 4;
+      int j = row*w + col;
+      if (col >= 0 && col < w && row >= 0 && j < n && j != i) {
+        store.topology.addEdge(i, j);
+      }
+    }
+    Simulation sim = new Simulation(store, nodes, stepper);
+    sim.setBounds(w*spacing, w*spacing);
+    return sim;
+  }
+
+  /* One force pass over every ball */
+  static long time(Simulation sim) {
+    long start = System.nanoTime();
+    sim.computeForces(0, sim.activeCount);
+    return System.nanoTime() - start;
+  }
+}
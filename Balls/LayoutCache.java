@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+Layouts of the graphs opened before, kept on disk so that opening one again starts
+from where its balls ended up last time instead of from random spots.
+
+Every layout is one file in the cache directory, named after the key of its graph: a
+64 bit hash of the names of the balls and of the edges between them, taken so that the
+order of the lines of the edge list does not matter.  A file holds
+
+   header         64 bytes: magic, version, ball count, sizes of the sections, key
+   source         the path of the edge list it was saved for, UTF-8
+   nameStart      int per ball + 1, into
+   nameBytes      the names, UTF-8
+   px, py         float per ball
+
+little-endian, each section padded to 8 bytes, like a GraphSnapshot.
+
+A graph whose key is not in the cache, say because a few edges were added since, gets
+the newest layout saved for the same edge list instead.  Either way positions are
+matched up by name (see Layout.apply()): the balls that were in the layout go back
+where they were and to sleep, and only the ones that are new are placed, each next to
+a neighbour that was in it, and relaxed.
+
+The cache is bounded: once its files take more than capacity bytes the least recently
+used ones are deleted.  A file's modification time is the last time it was used.
+*/
+public class LayoutCache {
+  static final int MAGIC = 0x424c4159;   // "BLAY"
+  static final int VERSION = 1;
+  static final int HEADER = 64;
+  static final String SUFFIX = ".layout";
+
+  File directory;
+  long capacity;
+
+  /* ~/.balls/layouts, at most 256 MB */
+  LayoutCache() {
+    this(new File(new File(System.getProperty("user.home"), ".balls"), "layouts"), 256L << 20);
+  }
+
+  LayoutCache(File _directory, long _capacity) {
+    directory = _directory;
+    capacity = _capacity;
+  }
+
+  /* The key of a graph: its names (by their NodeDictionary hashes) and its edges, each
+     mixed on its own and summed, so it does not depend on the ids they were given */
+  static long key(NodeDictionary names, Topology topology) {
+    topology.update();
+    int count = names.size();
+    long key = mix(count) ^ mix(~(long) topology.edges);
+    for (int i = 0; i < count; i++) {
+      long a = names.hashes[i];
+      key += mix(a);
+      for (int e = topology.firstOut(i); e != Topology.END; e = topology.nextOut(i, e)) {
+        long b = names.hashes[topology.out(e)];
+        key += mix((a << 32) ^ (b & 0xffffffffL) ^ 0x5bd1e9955bd1e995L);
+      }
+    }
+    return key;
+  }
+
+  /* The finalizer of SplitMix64 */
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  File file(long key) {
+    return new File(directory, String.format("%016x", key) + SUFFIX);
+  }
+
+  /* The layout of the graph with this key, or else the newest one of the same edge
+     list, or null if there is neither */
+  Layout find(long key, File source) throws IOException {
+    File file = file(key);
+    if (!file.exists()) {
+      file = null;
+      String path = source.getCanonicalPath();
+      File[] files = files();
+      for (int i = files.length-1; i >= 0 && file == null; i--) {
+        try {
+          if (path.equals(readSource(files[i]))) {
+            file = files[i];
+          }
+        } catch (IOException e) {
+          /* Not a layout, or a broken one: the next write may evict it */
+        }
+      }
+      if (file == null) {
+        return null;
+      }
+    }
+    Layout layout = read(file);
+    file.setLastModified(System.currentTimeMillis());
+    return layout;
+  }
+
+  /* Saves a layout under its key, then evicts the least recently used layouts until
+     the cache fits in its capacity again */
+  void put(Layout layout) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File file = file(layout.key);
+    layout.write(file);
+    long total = 0;
+    File[] files = files();
+    for (File f : files) {
+      total += f.length();
+    }
+    for (int i = 0; i < files.length && total > capacity; i++) {
+      if (!files[i].equals(file)) {
+        total -= files[i].length();
+        files[i].delete();
+      }
+    }
+  }
+
+  /* The layouts in the cache, least recently used first */
+  File[] files() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    final long[] used = new long[files.length];
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      used[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    /* Read every time once, not on each comparison */
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return used[a] < used[b] ? -1 : used[a] > used[b] ? 1 : 0;
+      }
+    });
+    File[] sorted = new File[files.length];
+    for (int i = 0; i < files.length; i++) {
+      sorted[i] = files[order[i]];
+    }
+    return sorted;
+  }
+
+  /* The path of the edge list a layout file was saved for */
+  static String readSource(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = header(channel, file);
+      int sourceBytes = header.getInt(16);
+      byte[] source = new byte[sourceBytes];
+      LayoutCheckpoint.read(channel, HEADER, sourceBytes).get(source);
+      return new String(source, GraphSnapshot.UTF8);
+    } finally {
+      raf.close();
+    }
+  }
+
+  static Layout read(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = header(channel, file);
+      Layout layout = new Layout(header.getInt(8));
+      long nameBytes = header.getLong(24);
+      layout.key = header.getLong(32);
+      int sourceBytes = header.getInt(16);
+      byte[] source = new byte[sourceBytes];
+      LayoutCheckpoint.read(channel, HEADER, sourceBytes).get(source);
+      layout.source = new String(source, GraphSnapshot.UTF8);
+
+      int n = layout.count;
+      long position = HEADER + LayoutCheckpoint.align(sourceBytes);
+      int[] nameStart = new int[n+1];
+      LayoutCheckpoint.read(channel, position, 4L*(n+1)).asIntBuffer().get(nameStart);
+      position += LayoutCheckpoint.align(4L*(n+1));
+      ByteBuffer bytes = LayoutCheckpoint.read(channel, position, nameBytes);
+      position += LayoutCheckpoint.align(nameBytes);
+      byte[] name = new byte[256];
+      for (int i = 0; i < n; i++) {
+        int length = nameStart[i+1] - nameStart[i];
+        if (name.length < length) {
+          name = new byte[Math.max(length, 2*name.length)];
+        }
+        bytes.position(nameStart[i]);
+        bytes.get(name, 0, length);
+        layout.names[i] = new String(name, 0, length, GraphSnapshot.UTF8);
+      }
+      LayoutCheckpoint.read(channel, position, 4L*n).asFloatBuffer().get(layout.px);
+      position += LayoutCheckpoint.align(4L*n);
+      LayoutCheckpoint.read(channel, position, 4L*n).asFloatBuffer().get(layout.py);
+      return layout;
+    } finally {
+      raf.close();
+    }
+  }
+
+  static ByteBuffer header(FileChannel channel, File file) throws IOException {
+    if (channel.size() < HEADER) {
+      throw new IOException(file + " is not a cached layout");
+    }
+    ByteBuffer header = LayoutCheckpoint.read(channel, 0, HEADER);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      throw new IOException(file + " is not a version " + VERSION + " cached layout");
+    }
+    return header;
+  }
+
+  /* Where the balls of one graph were */
+  static class Layout {
+    long key;
+    String source;
+    int count;
+    String[] names;
+    float[] px;
+    float[] py;
+
+    Layout(int _count) {
+      count = _count;
+      names = new String[count];
+      px = new float[count];
+      py = new float[count];
+    }
+
+    /* The positions of the balls now, under the key of their graph; call between two
+       steps */
+    static Layout take(Simulation sim, NodeDictionary dictionary, File source) throws IOException {
+      PhysicsStore store = sim.store;
+      int n = store.count;
+      Layout layout = new Layout(n);
+      layout.key = key(dictionary, store.topology);
+      layout.source = source.getCanonicalPath();
+      System.arraycopy(store.px, 0, layout.px, 0, n);
+      System.arraycopy(store.py, 0, layout.py, 0, n);
+      for (int i = 0; i < n; i++) {
+        layout.names[i] = dictionary.name(i);
+      }
+      return layout;
+    }
+
+    /* Moves the balls of the simulation that are in the layout to where they were and
+       puts them to sleep, so that, if sleeping is on (see Simulation.sleeping, which is
+       left as it is), they stay put until something next to them moves; the others are
+       placed next to one of their neighbours that is in it, if they have one, and woken
+       with their neighbours.  Returns how many balls were in the layout.  Call between
+       two steps. */
+    int apply(Simulation sim, NodeDictionary dictionary) {
+      PhysicsStore store = sim.store;
+      boolean[] placed = new boolean[store.count];
+      int restored = 0;
+      for (int k = 0; k < count; k++) {
+        /* The same graph again has the same ids, unless its lines were reordered */
+        int i = k;
+        if (k >= store.count || !names[k].equals(dictionary.name(k))) {
+          i = dictionary.find(names[k]);
+          if (i < 0 || i >= store.count || placed[i]) {
+            continue;
+          }
+        }
+        store.px[i] = px[k];
+        store.py[i] = py[k];
+        store.vx[i] = 0;
+        store.vy[i] = 0;
+        store.ax[i] = 0;
+        store.ay[i] = 0;
+        store.asleep[i] = true;
+        store.calmSteps[i] = sim.sleepSteps;
+        placed[i] = true;
+        restored++;
+      }
+      if (restored > 0 && restored < store.count) {
+        Topology t = store.topology;
+        t.update();
+        for (int i = 0; i < store.count; i++) {
+          if (placed[i]) {
+            continue;
+          }
+          for (int e = t.firstLink(i); e != Topology.END; e = t.nextLink(i, e)) {
+            int other = t.link(e);
+            if (placed[other]) {
+              sim.placeNear(sim.balls.get(i), sim.balls.get(other));
+              break;
+            }
+          }
+          store.wake(i);
+          for (int e = t.firstLink(i); e != Topology.END; e = t.nextLink(i, e)) {
+            store.wake(t.link(e));
+          }
+        }
+      }
+      store.publish();
+      return restored;
+    }
+
+    /* Written under a temporary name and renamed, like a LayoutCheckpoint */
+    void write(File file) throws IOException {
+      byte[] sourceBytes = source.getBytes(GraphSnapshot.UTF8);
+      int[] nameStart = new int[count+1];
+      byte[][] encoded = new byte[count][];
+      long total = 0;
+      for (int i = 0; i < count; i++) {
+        encoded[i] = names[i].getBytes(GraphSnapshot.UTF8);
+        total += encoded[i].length;
+        if (total > Integer.MAX_VALUE) {
+          throw new IOException("Too many bytes of names for one layout");
+        }
+        nameStart[i+1] = (int) total;
+      }
+
+      File temp = new File(file.getPath() + ".tmp");
+      FileOutputStream stream = new FileOutputStream(temp);
+      try {
+        GraphSnapshot.Writer out = new GraphSnapshot.Writer(stream.getChannel());
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(count);
+        header.putInt(0);
+        header.putInt(sourceBytes.length);
+        header.putInt(0);
+        header.putLong(total);
+        header.putLong(key);
+        out.bytes(header.array(), 0, HEADER);
+
+        out.bytes(sourceBytes, 0, sourceBytes.length);
+        out.align();
+        out.ints(nameStart, count+1);
+        for (int i = 0; i < count; i++) {
+          out.bytes(encoded[i], 0, encoded[i].length);
+        }
+        out.align();
+        out.floats(px, count);
+        out.floats(py, count);
+        out.flush();
+      } finally {
+        stream.close();
+      }
+      GraphSnapshot.replace(temp, file);
+    }
+  }
+}
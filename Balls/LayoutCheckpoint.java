@@ -0,0 +1,321 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/*
+Everything the simulation needs to carry on with a layout where it left off: every
+ball's position, velocity, acceleration of the last step (see VerletIntegrator), mass,
+equilibrium distance, sleep state and whether it is selected (held in place), plus the
+step size, the state of the StepController and the settings that decide how the
+simulation moves: sleeping, adaptive stepping, the integrator and the repulsion engine.
+
+take() copies all of it between two steps, which only costs a few array copies, and the
+copy can then be written out on another thread while the simulation goes on.  The file
+is little-endian and laid out like a GraphSnapshot:
+
+   header         64 bytes: magic, version, ball count, name bytes, the step state,
+                  the settings
+   nameStart      int per ball + 1, into
+   nameBytes      the names, UTF-8
+   px, py, vx, vy, ax, ay, mass, distance
+                  float per ball
+   calmSteps      int per ball
+   state          byte per ball: ASLEEP, SELECTED
+
+Balls are matched up by name when a checkpoint is restored, not by id, so it still
+applies after the edge list has been edited: balls that are gone are skipped and new
+ones keep the state they have.  A version 1 checkpoint has no settings, and restoring
+it leaves the simulation's as they are.
+*/
+public class LayoutCheckpoint {
+  static final int MAGIC = 0x42434b50;   // "BCKP"
+  static final int VERSION = 2;
+  static final int HEADER = 64;
+  static final int ASLEEP = 1;
+  static final int SELECTED = 2;
+
+  /* Settings flags, and the integrators */
+  static final int SLEEPING = 1;
+  static final int ADAPTIVE_STEP = 2;
+  static final int VERLET = 0;
+  static final int EULER = 1;
+
+  int count;
+  String[] names;
+  float[] px;
+  float[] py;
+  float[] vx;
+  float[] vy;
+  float[] ax;
+  float[] ay;
+  float[] mass;
+  float[] distance;
+  int[] calmSteps;
+  byte[] state;
+
+  /* Simulation and StepController */
+  float stepSize;
+  float lastStepSize;
+  float scale;
+  float blockEnergy;
+  int blockSteps;
+  float lastBlockEnergy;
+  boolean falling;
+
+  /* Settings (see Simulation) */
+  boolean hasSettings;
+  boolean sleeping;
+  boolean adaptiveStep;
+  int integrator;
+  int repulsionMode;
+
+  LayoutCheckpoint(int _count) {
+    count = _count;
+    names = new String[count];
+    px = new float[count];
+    py = new float[count];
+    vx = new float[count];
+    vy = new float[count];
+    ax = new float[count];
+    ay = new float[count];
+    mass = new float[count];
+    distance = new float[count];
+    calmSteps = new int[count];
+    state = new byte[count];
+  }
+
+  /* The state of the simulation right now; call between two steps */
+  static LayoutCheckpoint take(Simulation sim) {
+    PhysicsStore store = sim.store;
+    int n = store.count;
+    LayoutCheckpoint c = new LayoutCheckpoint(n);
+    System.arraycopy(store.px, 0, c.px, 0, n);
+    System.arraycopy(store.py, 0, c.py, 0, n);
+    System.arraycopy(store.vx, 0, c.vx, 0, n);
+    System.arraycopy(store.vy, 0, c.vy, 0, n);
+    System.arraycopy(store.ax, 0, c.ax, 0, n);
+    System.arraycopy(store.ay, 0, c.ay, 0, n);
+    System.arraycopy(store.mass, 0, c.mass, 0, n);
+    System.arraycopy(store.calmSteps, 0, c.calmSteps, 0, n);
+    for (int i = 0; i < n; i++) {
+      Node b = sim.balls.get(i);
+      c.names[i] = b.name;
+      c.distance[i] = b.desiredEquilibriumDistance;
+      c.state[i] = (byte) ((store.asleep[i] ? ASLEEP : 0) | (b.isSelected ? SELECTED : 0));
+    }
+    c.stepSize = sim.stepSize;
+    c.lastStepSize = sim.lastStepSize;
+    StepController sc = sim.stepController;
+    c.scale = sc.scale;
+    c.blockEnergy = sc.blockEnergy;
+    c.blockSteps = sc.blockSteps;
+    c.lastBlockEnergy = sc.lastBlockEnergy;
+    c.falling = sc.falling;
+    c.hasSettings = true;
+    c.sleeping = sim.sleeping;
+    c.adaptiveStep = sim.adaptiveStep;
+    c.integrator = sim.integrator instanceof EulerIntegrator ? EULER : VERLET;
+    c.repulsionMode = sim.repulsionMode;
+    return c;
+  }
+
+  /* Puts the saved state back into the balls of the simulation that have a name in
+     the checkpoint, and returns how many did.  Call between two steps. */
+  int restore(Simulation sim, NodeDictionary dictionary) {
+    PhysicsStore store = sim.store;
+    int restored = 0;
+    boolean[] saved = new boolean[store.count];
+    for (int k = 0; k < count; k++) {
+      if (names[k] == null) {
+        continue;
+      }
+      /* Unless the graph has changed, every ball still has the id it was saved with */
+      int i = k;
+      if (k >= store.count || !names[k].equals(sim.balls.get(k).name)) {
+        i = dictionary.find(names[k]);
+        if (i < 0 || i >= store.count) {
+          continue;
+        }
+      }
+      store.px[i] = px[k];
+      store.py[i] = py[k];
+      store.vx[i] = vx[k];
+      store.vy[i] = vy[k];
+      store.ax[i] = ax[k];
+      store.ay[i] = ay[k];
+      store.mass[i] = mass[k];
+      store.calmSteps[i] = calmSteps[k];
+      store.asleep[i] = (state[k] & ASLEEP) != 0;
+      Node b = sim.balls.get(i);
+      b.desiredEquilibriumDistance = distance[k];
+      b.isSelected = (state[k] & SELECTED) != 0;
+      saved[i] = true;
+      restored++;
+    }
+    sim.stepSize = stepSize;
+    sim.lastStepSize = lastStepSize;
+    StepController sc = sim.stepController;
+    sc.scale = scale;
+    sc.blockEnergy = blockEnergy;
+    sc.blockSteps = blockSteps;
+    sc.lastBlockEnergy = lastBlockEnergy;
+    sc.falling = falling;
+    if (hasSettings) {
+      sim.sleeping = sleeping;
+      sim.adaptiveStep = adaptiveStep;
+      sim.integrator = integrator == EULER ? new EulerIntegrator() : new VerletIntegrator();
+      sim.repulsionMode = repulsionMode;
+    }
+    /* Balls that did not get a saved state may be anywhere: wake them and their links */
+    if (restored < store.count) {
+      Topology t = store.topology;
+      t.update();
+      for (int i = 0; i < store.count; i++) {
+        if (!saved[i]) {
+          store.wake(i);
+          for (int e = t.firstLink(i); e != Topology.END; e = t.nextLink(i, e)) {
+            store.wake(t.link(e));
+          }
+        }
+      }
+    }
+    store.publish();
+    return restored;
+  }
+
+  /* Writes the checkpoint under a temporary name and renames it, so a checkpoint that is
+     there is always complete */
+  void write(File file) throws IOException {
+    int[] nameStart = new int[count+1];
+    byte[][] encoded = new byte[count][];
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      encoded[i] = (names[i] != null ? names[i] : "").getBytes(GraphSnapshot.UTF8);
+      total += encoded[i].length;
+      if (total > Integer.MAX_VALUE) {
+        throw new IOException("Too many bytes of names for one checkpoint");
+      }
+      nameStart[i+1] = (int) total;
+    }
+
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temp);
+    try {
+      GraphSnapshot.Writer out = new GraphSnapshot.Writer(stream.getChannel());
+      ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(count);
+      header.putInt(0);
+      header.putLong(total);
+      header.putFloat(stepSize);
+      header.putFloat(lastStepSize);
+      header.putFloat(scale);
+      header.putFloat(blockEnergy);
+      header.putInt(blockSteps);
+      header.putFloat(lastBlockEnergy);
+      header.putInt(falling ? 1 : 0);
+      header.putInt((sleeping ? SLEEPING : 0) | (adaptiveStep ? ADAPTIVE_STEP : 0));
+      header.putInt(integrator);
+      header.putInt(repulsionMode);
+      out.bytes(header.array(), 0, HEADER);
+
+      out.ints(nameStart, count+1);
+      for (int i = 0; i < count; i++) {
+        out.bytes(encoded[i], 0, encoded[i].length);
+      }
+      out.align();
+      out.floats(px, count);
+      out.floats(py, count);
+      out.floats(vx, count);
+      out.floats(vy, count);
+      out.floats(ax, count);
+      out.floats(ay, count);
+      out.floats(mass, count);
+      out.floats(distance, count);
+      out.ints(calmSteps, count);
+      out.bytes(state, 0, count);
+      out.align();
+      out.flush();
+    } finally {
+      stream.close();
+    }
+    GraphSnapshot.replace(temp, file);
+  }
+
+  static LayoutCheckpoint read(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < HEADER) {
+        throw new IOException(file + " is not a layout checkpoint");
+      }
+      ByteBuffer header = read(channel, 0, HEADER);
+      int version = header.getInt(4);
+      if (header.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+        throw new IOException(file + " is not a version 1 to " + VERSION + " layout checkpoint");
+      }
+      LayoutCheckpoint c = new LayoutCheckpoint(header.getInt(8));
+      long nameBytes = header.getLong(16);
+      c.stepSize = header.getFloat(24);
+      c.lastStepSize = header.getFloat(28);
+      c.scale = header.getFloat(32);
+      c.blockEnergy = header.getFloat(36);
+      c.blockSteps = header.getInt(40);
+      c.lastBlockEnergy = header.getFloat(44);
+      c.falling = header.getInt(48) != 0;
+      if (version >= 2) {
+        int settings = header.getInt(52);
+        c.hasSettings = true;
+        c.sleeping = (settings & SLEEPING) != 0;
+        c.adaptiveStep = (settings & ADAPTIVE_STEP) != 0;
+        c.integrator = header.getInt(56);
+        c.repulsionMode = header.getInt(60);
+        if ((c.integrator != VERLET && c.integrator != EULER) || c.repulsionMode < Simulation.REPULSION_DIRECT
+            || c.repulsionMode > Simulation.REPULSION_GRID) {
+          throw new IOException(file + " is damaged: unknown settings");
+        }
+      }
+
+      int n = c.count;
+      long position = HEADER;
+      int[] nameStart = new int[n+1];
+      read(channel, position, 4L*(n+1)).asIntBuffer().get(nameStart);
+      position += align(4L*(n+1));
+      ByteBuffer bytes = read(channel, position, nameBytes);
+      position += align(nameBytes);
+      byte[] name = new byte[256];
+      for (int i = 0; i < n; i++) {
+        int length = nameStart[i+1] - nameStart[i];
+        if (name.length < length) {
+          name = new byte[Math.max(length, 2*name.length)];
+        }
+        bytes.position(nameStart[i]);
+        bytes.get(name, 0, length);
+        c.names[i] = new String(name, 0, length, GraphSnapshot.UTF8);
+      }
+      float[][] sections = {c.px, c.py, c.vx, c.vy, c.ax, c.ay, c.mass, c.distance};
+      for (float[] a : sections) {
+        read(channel, position, 4L*n).asFloatBuffer().get(a);
+        position += align(4L*n);
+      }
+      read(channel, position, 4L*n).asIntBuffer().get(c.calmSteps);
+      position += align(4L*n);
+      read(channel, position, n).get(c.state);
+      return c;
+    } finally {
+      raf.close();
+    }
+  }
+
+  static ByteBuffer read(FileChannel channel, long position, long bytes) throws IOException {
+    if (position + bytes > channel.size()) {
+      throw new IOException("Layout checkpoint cut short");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+}
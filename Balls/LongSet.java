@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/*
+A set of longs, such as edges packed into one long each, without boxing: looking a key
+up or adding one that fits allocates nothing.
+
+The table is open addressing with linear probing, kept at most half full, and remove()
+shifts back the keys probed past the hole like NodeDictionary.unlink() does.  0 marks an
+empty slot, so it cannot be a key; the edges put in here are never a ball's edge to
+itself, which is the only way to get 0.
+*/
+public class LongSet {
+  long[] keys;   // 0 when empty
+  int mask;
+  int size;
+
+  LongSet() {
+    this(16);
+  }
+
+  /* Room for n keys without growing */
+  LongSet(int n) {
+    int slots = 16;
+    while (slots < 2*n) {
+      slots *= 2;
+    }
+    keys = new long[slots];
+    mask = slots-1;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  boolean contains(long key) {
+    return keys[probe(key)] != 0;
+  }
+
+  /* Adds key; false if it was there already */
+  boolean add(long key) {
+    int slot = probe(key);
+    if (keys[slot] != 0) {
+      return false;
+    }
+    keys[slot] = key;
+    size++;
+    if (2*size > keys.length) {
+      rehash(2*keys.length);
+    }
+    return true;
+  }
+
+  /* Removes key; false if it was not there */
+  boolean remove(long key) {
+    int hole = probe(key);
+    if (keys[hole] == 0) {
+      return false;
+    }
+    int slot = (hole+1) & mask;
+    while (keys[slot] != 0) {
+      int home = spread(keys[slot]) & mask;
+      /* The key can fill the hole unless its home lies cyclically in (hole, slot] */
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        keys[hole] = keys[slot];
+        hole = slot;
+      }
+      slot = (slot+1) & mask;
+    }
+    keys[hole] = 0;
+    size--;
+    return true;
+  }
+
+  /* Empties the set, and gives back the memory of a big one */
+  void clear() {
+    if (keys.length > 16) {
+      keys = new long[16];
+      mask = 15;
+    } else {
+      Arrays.fill(keys, 0);
+    }
+    size = 0;
+  }
+
+  /* The slot holding key, or the empty slot where it would go */
+  int probe(long key) {
+    int slot = spread(key) & mask;
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot+1) & mask;
+    }
+    return slot;
+  }
+
+  void rehash(int slots) {
+    long[] old = keys;
+    keys = new long[slots];
+    mask = slots-1;
+    for (long key : old) {
+      if (key != 0) {
+        keys[probe(key)] = key;
+      }
+    }
+  }
+
+  static int spread(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,225 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/*
+The force model of Simulation, run straight off a MappedStore.
+
+Same springs, same linear repulsion out to REPULSION_RANGE equilibrium distances, same
+damping and velocity Verlet, but every ball shares one set of constants and there are
+no Node objects: the loops below read and write the mapped sections directly, so the
+layout of a graph far bigger than the heap costs next to no heap at all.
+
+A step builds a hashed grid over the balls exactly like SpatialGrid (counting-sorted
+into the store's scratch sections), computes every force from the positions at the
+start of the step, then moves every ball.  Attractive balls are summed with the rest
+of the grid and taken back out afterwards, as in SpatialGrid.addRepulsion().
+
+There is no sleeping, adaptive step or multi-core stepping here yet: those are built
+around Simulation's per-ball objects.
+*/
+public class MappedLayout {
+  MappedStore store;
+
+  float desiredEquilibriumDistance;
+  float springConstant;
+  float dampingConstant;
+  float playbackSpeed;
+  float framerate;
+  float Fmax;
+  int REPULSION_RANGE = 3;
+  float boundsWidth;
+  float boundsHeight;
+  float cellSize;
+
+  /* Measured while moving the balls, for ConvergenceMonitor */
+  float kineticEnergy;
+  float totalSpeed;
+  float maxDisplacement;
+
+  MappedLayout(MappedStore _store) {
+    store = _store;
+    desiredEquilibriumDistance = 40;
+    springConstant = 2;
+    dampingConstant = 0.5f*springConstant;
+    playbackSpeed = 5;
+    framerate = 60;
+    Fmax = 100;
+    boundsWidth = Float.MAX_VALUE;
+    boundsHeight = Float.MAX_VALUE;
+  }
+
+  void setBounds(float _width, float _height) {
+    boundsWidth = _width;
+    boundsHeight = _height;
+  }
+
+  void step() {
+    buildGrid();
+    computeForces();
+    integrate(playbackSpeed/framerate);
+  }
+
+  int bucket(int cx, int cy) {
+    return ((cx*73856093) ^ (cy*19349663)) & (store.buckets-1);
+  }
+
+  /* Counting sort of the balls by bucket, as in SpatialGrid.build() */
+  void buildGrid() {
+    int n = store.count;
+    int buckets = store.buckets;
+    FloatBuffer px = store.px;
+    FloatBuffer py = store.py;
+    IntBuffer bucketOf = store.bucketOf;
+    IntBuffer bucketStart = store.bucketStart;
+    cellSize = REPULSION_RANGE*desiredEquilibriumDistance;
+
+    for (int k = 0; k <= buckets; k++) {
+      bucketStart.put(k, 0);
+    }
+    for (int i = 0; i < n; i++) {
+      int k = bucket((int) Math.floor(px.get(i)/cellSize), (int) Math.floor(py.get(i)/cellSize));
+      bucketOf.put(i, k);
+      bucketStart.put(k+1, bucketStart.get(k+1) + 1);
+    }
+    for (int k = 0; k < buckets; k++) {
+      bucketStart.put(k+1, bucketStart.get(k+1) + bucketStart.get(k));
+    }
+    for (int i = 0; i < n; i++) {
+      int k = bucketOf.get(i);
+      int p = bucketStart.get(k);
+      bucketStart.put(k, p+1);
+      float x = px.get(i);
+      float y = py.get(i);
+      store.order.put(p, i);
+      store.sortedX.put(p, x);
+      store.sortedY.put(p, y);
+      store.cellX.put(p, (int) Math.floor(x/cellSize));
+      store.cellY.put(p, (int) Math.floor(y/cellSize));
+    }
+    for (int k = buckets; k > 0; k--) {
+      bucketStart.put(k, bucketStart.get(k-1));
+    }
+    bucketStart.put(0, 0);
+  }
+
+  /* Stores the net force on every ball in store.fx/fy.  The balls are visited in grid
+     order, so the balls around each one are mostly still in memory from the last. */
+  void computeForces() {
+    FloatBuffer px = store.px;
+    FloatBuffer py = store.py;
+    IntBuffer offsets = store.offsets;
+    IntBuffer targets = store.targets;
+    IntBuffer bucketStart = store.bucketStart;
+    FloatBuffer sortedX = store.sortedX;
+    FloatBuffer sortedY = store.sortedY;
+    IntBuffer cellX = store.cellX;
+    IntBuffer cellY = store.cellY;
+    float d = desiredEquilibriumDistance;
+    float cutoff = REPULSION_RANGE*d;
+    float cutoff2 = cutoff*cutoff;
+    float slope = Fmax/cutoff;
+
+    for (int p = 0; p < store.count; p++) {
+      int i = store.order.get(p);
+      float x = sortedX.get(p);
+      float y = sortedY.get(p);
+      int cx = cellX.get(p);
+      int cy = cellY.get(p);
+
+      /* Springs, and the attractive balls' share of the repulsion taken back out */
+      float displacementX = 0;
+      float displacementY = 0;
+      float forceX = 0;
+      float forceY = 0;
+      int end = offsets.get(i+1);
+      for (int e = offsets.get(i); e < end; e++) {
+        int j = targets.get(e);
+        float rx = x - px.get(j);
+        float ry = y - py.get(j);
+        float d2 = rx*rx + ry*ry;
+        if (d2 > 0) {
+          float mag = (float) Math.sqrt(d2);
+          displacementX += rx - rx/mag*d;
+          displacementY += ry - ry/mag*d;
+          if (d2 < cutoff2) {
+            float f = Fmax/mag - slope;
+            forceX -= rx*f;
+            forceY -= ry*f;
+          }
+        }
+      }
+      forceX -= springConstant*displacementX;
+      forceY -= springConstant*displacementY;
+
+      /* Repulsion from every ball in range */
+      for (int gx = cx-1; gx <= cx+1; gx++) {
+        for (int gy = cy-1; gy <= cy+1; gy++) {
+          int k = bucket(gx, gy);
+          int last = bucketStart.get(k+1);
+          for (int q = bucketStart.get(k); q < last; q++) {
+            float rx = x - sortedX.get(q);
+            float ry = y - sortedY.get(q);
+            float d2 = rx*rx + ry*ry;
+            if (d2 < cutoff2 && d2 > 0 && cellX.get(q) == gx && cellY.get(q) == gy) {
+              float f = Fmax/(float) Math.sqrt(d2) - slope;
+              forceX += rx*f;
+              forceY += ry*f;
+            }
+          }
+        }
+      }
+
+      forceX -= dampingConstant*store.vx.get(i);
+      forceY -= dampingConstant*store.vy.get(i);
+      store.fx.put(i, forceX);
+      store.fy.put(i, forceY);
+    }
+  }
+
+  /* Velocity Verlet with a fixed step (see VerletIntegrator), walls as in
+     Simulation.checkWalls() */
+  void integrate(float dt) {
+    FloatBuffer px = store.px;
+    FloatBuffer py = store.py;
+    FloatBuffer vx = store.vx;
+    FloatBuffer vy = store.vy;
+    float energy = 0;
+    float speed = 0;
+    float maxDisp2 = 0;
+    float eps = 1.0f;
+    for (int i = 0; i < store.count; i++) {
+      float ax = store.fx.get(i);
+      float ay = store.fy.get(i);
+      float velX = vx.get(i) + 0.5f*(store.ax.get(i) + ax)*dt;
+      float velY = vy.get(i) + 0.5f*(store.ay.get(i) + ay)*dt;
+      float x = px.get(i);
+      float y = py.get(i);
+      float newX = x + velX*dt + 0.5f*ax*dt*dt;
+      float newY = y + velY*dt + 0.5f*ay*dt*dt;
+      if (newX < 0 || newX > boundsWidth) {
+        velX = -0.9f*velX;
+        newX = newX < 0 ? eps : boundsWidth - eps;
+      }
+      if (newY < 0 || newY > boundsHeight) {
+        velY = -0.9f*velY;
+        newY = newY < 0 ? eps : boundsHeight - eps;
+      }
+      store.ax.put(i, ax);
+      store.ay.put(i, ay);
+      vx.put(i, velX);
+      vy.put(i, velY);
+      px.put(i, newX);
+      py.put(i, newY);
+
+      float v2 = velX*velX + velY*velY;
+      energy += 0.5f*v2;
+      speed += (float) Math.sqrt(v2);
+      float dx = newX - x;
+      float dy = newY - y;
+      maxDisp2 = Math.max(maxDisp2, dx*dx + dy*dy);
+    }
+    kineticEnergy = energy;
+    totalSpeed = speed;
+    maxDisplacement = (float) Math.sqrt(maxDisp2);
+  }
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+A graph and its physical state kept outside the Java heap, in a memory-mapped file.
+
+PhysicsStore plus one Node per ball costs a few hundred bytes of heap per ball, which
+rules out graphs with millions of balls.  Here a ball is nothing but its index: its
+position, velocity, force and acceleration live at that index of the float sections
+below, and its attractive balls are a run of the CSR (compressed sparse row) adjacency:
+the neighbours of ball i are targets[offsets[i]] .. targets[offsets[i+1]-1].  The
+scratch space of the repulsion grid is mapped from the same file (see MappedLayout).
+
+Every section is mapped on its own, so the file can be larger than 2 GB (the limit of
+one mapping, which every section must fit in: see checkSize()) and larger than RAM:
+the OS pages the sections in and out as the layout walks them.  The file is working
+storage for one run, written in the machine's byte order, not an exchange format.
+
+About 20 words per ball and one per edge end, e.g. roughly 480 MB for 5M balls with
+10M edges, none of it on the heap.
+*/
+public class MappedStore {
+  static final int MAGIC = 0x42414c4c;   // "BALL"
+  static final int VERSION = 1;
+  static final int HEADER = 64;
+  static final long SECTION_LIMIT = Integer.MAX_VALUE;   // bytes of one mapping
+
+  File file;
+  RandomAccessFile raf;
+  FileChannel channel;
+  long position;      // where the next section goes while mapping
+  ByteBuffer header;
+
+  int count;          // balls
+  int adjacency;      // used entries of targets: every edge is in there twice
+  int buckets;        // size of the grid's hash table (a power of two)
+
+  FloatBuffer px;
+  FloatBuffer py;
+  FloatBuffer vx;
+  FloatBuffer vy;
+  FloatBuffer fx;
+  FloatBuffer fy;
+  FloatBuffer ax;     // acceleration at the start of the last step (see VerletIntegrator)
+  FloatBuffer ay;
+
+  /* CSR adjacency */
+  IntBuffer offsets;  // count+1 entries
+  IntBuffer targets;
+
+  /* Repulsion grid scratch (see MappedLayout.buildGrid()) */
+  IntBuffer bucketOf;     // bucket of each ball, by id
+  IntBuffer bucketStart;  // bodies of bucket k sit at [bucketStart[k], bucketStart[k+1])
+  IntBuffer order;        // ball ids in bucket order
+  FloatBuffer sortedX;
+  FloatBuffer sortedY;
+  IntBuffer cellX;
+  IntBuffer cellY;
+
+  /* Creates (or overwrites) file with room for _count balls and _adjacency edge ends.
+     The file starts out sparse: nothing is written until it is used. */
+  MappedStore(File _file, int _count, int _adjacency) throws IOException {
+    checkSize(_count, _adjacency);
+    file = _file;
+    count = _count;
+    adjacency = _adjacency;
+    buckets = 16;
+    while (buckets < 2*count) {
+      buckets *= 2;
+    }
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    channel = raf.getChannel();
+
+    header = map(HEADER);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(count);
+    header.putInt(adjacency);
+    header.putInt(buckets);
+
+    px = mapFloats(count);
+    py = mapFloats(count);
+    vx = mapFloats(count);
+    vy = mapFloats(count);
+    fx = mapFloats(count);
+    fy = mapFloats(count);
+    ax = mapFloats(count);
+    ay = mapFloats(count);
+    offsets = mapInts(count+1);
+    targets = mapInts(adjacency);
+    bucketOf = mapInts(count);
+    bucketStart = mapInts(buckets+1);
+    order = mapInts(count);
+    sortedX = mapFloats(count);
+    sortedY = mapFloats(count);
+    cellX = mapInts(count);
+    cellY = mapInts(count);
+  }
+
+  /* Throws unless every section of a store of count balls and adjacency edge ends fits
+     in one mapping.  The edge ends (4 bytes each) and the grid's table (4 bytes for
+     each of up to 4*count buckets) are the sections that outgrow it first. */
+  static void checkSize(long count, long adjacency) throws IOException {
+    if (4L*adjacency > SECTION_LIMIT) {
+      throw new IOException("Too many edges for a mapped store: the " + adjacency/2 + " edges take "
+        + 4L*adjacency + " bytes of adjacency, and one section can map at most " + SECTION_LIMIT);
+    }
+    long buckets = 16;
+    while (buckets < 2*count) {
+      buckets *= 2;
+    }
+    if (4L*(buckets+1) > SECTION_LIMIT) {
+      throw new IOException("Too many balls for a mapped store: the grid of " + count + " balls takes "
+        + 4L*(buckets+1) + " bytes, and one section can map at most " + SECTION_LIMIT);
+    }
+  }
+
+  ByteBuffer map(long bytes) throws IOException {
+    /* Keep every section 8 byte aligned */
+    bytes = (bytes + 7) & ~7L;
+    ByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(bytes, 8));
+    position += Math.max(bytes, 8);
+    return b.order(ByteOrder.nativeOrder());
+  }
+
+  FloatBuffer mapFloats(int n) throws IOException {
+    return map(4L*n).asFloatBuffer();
+  }
+
+  IntBuffer mapInts(int n) throws IOException {
+    return map(4L*n).asIntBuffer();
+  }
+
+  /* Number of distinct attractive balls of ball i */
+  int degree(int i) {
+    return offsets.get(i+1) - offsets.get(i);
+  }
+
+  /* Once targets has been filled (offsets[i] .. offsets[i+1] holding the neighbours of
+     i in any order, repeats allowed), sorts every run and drops repeated neighbours and
+     links of a ball to itself, closing up the gaps.  Only one run at a time is ever on
+     the heap. */
+  void deduplicate() {
+    int[] run = new int[16];
+    int write = 0;
+    int start = offsets.get(0);
+    for (int i = 0; i < count; i++) {
+      int end = offsets.get(i+1);
+      int n = end - start;
+      if (run.length < n) {
+        run = new int[Math.max(n, 2*run.length)];
+      }
+      for (int k = 0; k < n; k++) {
+        run[k] = targets.get(start+k);
+      }
+      Arrays.sort(run, 0, n);
+      offsets.put(i, write);
+      for (int k = 0; k < n; k++) {
+        if (run[k] != i && (k == 0 || run[k] != run[k-1])) {
+          targets.put(write++, run[k]);
+        }
+      }
+      start = end;
+    }
+    offsets.put(count, write);
+    adjacency = write;
+    header.putInt(12, adjacency);
+  }
+
+  void close() throws IOException {
+    /* The mappings stay valid until they are garbage collected; closing the channel
+       only releases the file handle */
+    channel.close();
+    raf.close();
+  }
+}
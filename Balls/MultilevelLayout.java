@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+Multilevel layout: gives a large network a good starting arrangement before the
+regular simulation takes over.
+
+Starting from random positions, a big network spends thousands of steps just
+untangling itself, because a knot can only travel a ball's width per step.  Instead,
+the network is coarsened into a hierarchy of smaller networks: every ball is matched
+with one of its attractive balls (the one with the fewest links, so hubs don't swallow
+their neighborhoods), balls with no free neighbor left collapse into the smallest
+neighboring group, and each pair or group becomes a single ball of the next level.
+Two coarse balls attract each other if any of their balls did.
+
+The coarsest level (a few dozen balls) is laid out from random positions, which is
+almost free.  Then, level by level, every ball is placed where the coarse ball it
+collapsed into ended up (plus a little jitter so that pairs come apart) and the level
+is relaxed with the usual spring/repulsion model.  Each level only has to fix local
+detail, so few steps are needed and most of them run on small networks.
+
+A coarse level covers about the same area as the full network: its equilibrium
+distance is scaled by sqrt(finer balls / coarser balls).
+
+The finest level is the simulation itself: run() leaves its balls in their starting
+positions and the regular simulation refines them from there.
+
+Laying out a big graph takes a while, so the sketch does not run() its simulation but a
+copy() of it, taken between two steps, on a thread of its own, and only holds up the
+simulation for the copyBack() of the positions at the end.
+*/
+public class MultilevelLayout {
+  static final int THRESHOLD = 5000;   // graphs at least this big get a multilevel layout by default
+  int COARSEST_SIZE = 50;       // stop coarsening at this many balls
+  float MIN_REDUCTION = 0.8f;    // ... or when a level keeps more than this fraction of the balls
+  int maxLevelSteps;            // steps per level if it does not converge sooner
+  float jitter;                 // fraction of the equilibrium distance
+
+  ArrayList<Simulation> levels;   // levels.get(0) is the simulation itself
+  ArrayList<int[]> parents;       // parents.get(l)[i]: the ball of level l+1 that ball i of level l collapsed into
+  Node[] originals;               // originals[i]: the ball of the simulation that ball i of the copy() stands for
+  long coarseSteps;
+  Random rng;
+
+  MultilevelLayout() {
+    maxLevelSteps = 1000;
+    jitter = 0.1f;
+    rng = new Random();
+  }
+
+  /* A simulation of its own with the balls, links and positions of sim (call it between
+     two steps).  It has its own workers, which its caller shuts down once it is done
+     with it. */
+  Simulation copy(Simulation sim) {
+    int n = sim.store.count;
+    PhysicsStore store = new PhysicsStore(n);
+    ArrayList<Node> nodes = new ArrayList<Node>(n);
+    originals = new Node[n];
+    for (int i = 0; i < n; i++) {
+      Node b = sim.balls.get(i);
+      Node c = new Node(store, sim.store.px[i], sim.store.py[i], 0, 0);
+      c.setName(b.name);
+      c.springConstant = b.springConstant;
+      c.dampingConstant = b.dampingConstant;
+      c.playbackSpeed = b.playbackSpeed;
+      c.desiredEquilibriumDistance = b.desiredEquilibriumDistance;
+      nodes.add(c);
+      originals[i] = b;
+    }
+    Topology links = sim.store.topology;
+    for (int i = 0; i < n; i++) {
+      for (int k = links.firstOut(i); k != Topology.END; k = links.nextOut(i, k)) {
+        store.topology.addEdge(i, links.out(k));
+      }
+    }
+    store.topology.update();
+
+    Simulation s = new Simulation(store, nodes);
+    s.repulsionMode = sim.repulsionMode;
+    s.barnesHutTheta = sim.barnesHutTheta;
+    s.parallelStepping = sim.parallelStepping;
+    s.framerate = sim.framerate;
+    s.integrator = sim.integrator;
+    s.adaptiveStep = sim.adaptiveStep;
+    s.setBounds(sim.boundsWidth, sim.boundsHeight);
+    return s;
+  }
+
+  /* Moves the balls of sim to where their balls of the copy() were laid out (call it
+     between two steps).  Balls removed since the copy was taken are skipped, and balls
+     added since keep their places. */
+  void copyBack(Simulation copy, Simulation sim) {
+    for (int i = 0; i < copy.store.count; i++) {
+      int id = originals[i].id;
+      if (id < 0) {
+        continue;
+      }
+      sim.store.px[id] = copy.store.px[i];
+      sim.store.py[id] = copy.store.py[i];
+      sim.store.vx[id] = 0;
+      sim.store.vy[id] = 0;
+      sim.store.ax[id] = 0;
+      sim.store.ay[id] = 0;
+    }
+    sim.wakeAll();
+  }
+
+  /* Lays out the simulation's balls (call it on the simulation thread, or on a thread
+     of its own for a copy()) */
+  void run(Simulation sim) {
+    long start = System.currentTimeMillis();
+    coarsen(sim);
+
+    /* Scatter the coarsest level over the area the balls currently cover */
+    float minX = Float.MAX_VALUE;
+    float minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE;
+    float maxY = -Float.MAX_VALUE;
+    for (int i = 0; i < sim.store.count; i++) {
+      minX = Math.min(minX, sim.store.px[i]);
+      minY = Math.min(minY, sim.store.py[i]);
+      maxX = Math.max(maxX, sim.store.px[i]);
+      maxY = Math.max(maxY, sim.store.py[i]);
+    }
+    Simulation coarsest = levels.get(levels.size()-1);
+    for (int i = 0; i < coarsest.store.count; i++) {
+      coarsest.store.px[i] = random(minX, maxX);
+      coarsest.store.py[i] = random(minY, maxY);
+    }
+
+    coarseSteps = 0;
+    for (int l = levels.size()-1; l > 0; l--) {
+      relax(levels.get(l));
+      prolong(l);
+    }
+    sim.wakeAll();
+
+    System.out.print("Multilevel layout: " + levels.size() + " levels (");
+    for (int l = 0; l < levels.size(); l++) {
+      System.out.print((l > 0 ? ", " : "") + levels.get(l).store.count);
+    }
+    System.out.println(" balls), " + coarseSteps + " coarse steps in " + (System.currentTimeMillis() - start)/1000.0 + " s");
+  }
+
+  void coarsen(Simulation sim) {
+    levels = new ArrayList<Simulation>();
+    parents = new ArrayList<int[]>();
+    levels.add(sim);
+
+    Simulation fine = sim;
+    while (fine.balls.size() > COARSEST_SIZE) {
+      int n = fine.balls.size();
+      int[] parent = new int[n];
+      PhysicsStore store = new PhysicsStore(n/2 + 1);
+      ArrayList<Node> coarse = new ArrayList<Node>();
+      int[] weight = new int[n];    // number of fine balls in each coarse ball
+      Topology links = fine.store.topology;
+      links.update();
+
+      for (int i = 0; i < n; i++) {
+        parent[i] = -1;
+      }
+      /* Visit the balls in random order so the matching has no directional bias */
+      int[] order = new int[n];
+      for (int i = 0; i < n; i++) {
+        order[i] = i;
+      }
+      for (int i = n-1; i > 0; i--) {
+        int j = rng.nextInt(i+1);
+        int t = order[i];
+        order[i] = order[j];
+        order[j] = t;
+      }
+
+      for (int k = 0; k < n; k++) {
+        int i = order[k];
+        if (parent[i] != -1) {
+          continue;
+        }
+        Node b = fine.balls.get(i);
+        int mate = -1;
+        int group = -1;
+        for (int m = links.firstLink(i); m != Topology.END; m = links.nextLink(i, m)) {
+          int other = links.link(m);
+          if (parent[other] == -1) {
+            if (mate == -1 || links.degree(other) < links.degree(mate)) {
+              mate = other;
+            }
+          } else if (group == -1 || weight[parent[other]] < weight[group]) {
+            group = parent[other];
+          }
+        }
+
+        if (mate == -1 && group != -1) {
+          /* Every neighbor is taken: join the smallest neighboring group */
+          parent[i] = group;
+          weight[group]++;
+          continue;
+        }
+        Node c = new Node(store, 0, 0, 0, 0);
+        c.setName(b.name);
+        c.springConstant = b.springConstant;
+        c.dampingConstant = b.dampingConstant;
+        c.playbackSpeed = b.playbackSpeed;
+        c.desiredEquilibriumDistance = b.desiredEquilibriumDistance;
+        coarse.add(c);
+        parent[i] = c.id;
+        weight[c.id] = 1;
+        if (mate != -1) {
+          parent[mate] = c.id;
+          weight[c.id]++;
+        }
+      }
+
+      if (coarse.size() > MIN_REDUCTION*n) {
+        /* Not shrinking any more (e.g. lots of isolated balls): stop here */
+        break;
+      }
+
+      /* One edge per fine link (the coarse topology drops the repeats and the links
+         inside a coarse ball) */
+      for (int i = 0; i < n; i++) {
+        for (int m = links.firstLink(i); m != Topology.END; m = links.nextLink(i, m)) {
+          int j = links.link(m);
+          if (i < j) {
+            store.topology.addEdge(parent[i], parent[j]);
+          }
+        }
+      }
+      store.topology.update();
+
+      float scale = (float) Math.sqrt((float) n/coarse.size());
+      for (int i = 0; i < coarse.size(); i++) {
+        coarse.get(i).desiredEquilibriumDistance *= scale;
+      }
+
+      Simulation s = new Simulation(store, coarse, sim.parallelStepper);
+      s.repulsionMode = sim.repulsionMode;
+      s.barnesHutTheta = sim.barnesHutTheta;
+      s.parallelStepping = sim.parallelStepping;
+      s.framerate = sim.framerate;
+      s.integrator = sim.integrator;
+      s.adaptiveStep = sim.adaptiveStep;
+      s.setBounds(sim.boundsWidth, sim.boundsHeight);
+      levels.add(s);
+      parents.add(parent);
+      fine = s;
+    }
+  }
+
+  /* Steps one coarse level until it converges (or runs out of steps) */
+  void relax(Simulation s) {
+    ConvergenceMonitor monitor = new ConvergenceMonitor();
+    monitor.report = false;
+    for (int k = 0; k < maxLevelSteps; k++) {
+      s.step();
+      coarseSteps++;
+      if (monitor.update(s.store)) {
+        break;
+      }
+    }
+  }
+
+  /* Places every ball of level l-1 on the ball of level l it collapsed into */
+  void prolong(int l) {
+    PhysicsStore coarse = levels.get(l).store;
+    Simulation fine = levels.get(l-1);
+    int[] parent = parents.get(l-1);
+    for (int i = 0; i < fine.store.count; i++) {
+      float r = jitter*fine.balls.get(i).desiredEquilibriumDistance;
+      fine.store.px[i] = coarse.px[parent[i]] + random(-r, r);
+      fine.store.py[i] = coarse.py[parent[i]] + random(-r, r);
+      fine.store.vx[i] = 0;
+      fine.store.vy[i] = 0;
+      fine.store.ax[i] = 0;
+      fine.store.ay[i] = 0;
+    }
+  }
+
+  float random(float low, float high) {
+    return low + rng.nextFloat()*(high - low);
+  }
+}
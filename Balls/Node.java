@@ -0,0 +1,78 @@
+/*
+The part of a ball the physics needs: where it lives in the PhysicsStore and its
+spring/repulsion parameters (who it is attached to is kept by the store's Topology).
+Ball adds everything needed to draw it and interact with it.
+
+The simulation only ever deals with Nodes, so it can run without the sketch (and
+without a display, see HeadlessLayout).
+*/
+public class Node {
+  PhysicsStore store;
+  int id;
+  String name;
+  float desiredEquilibriumDistance;
+  float springConstant;
+  float nomSpringDistance;
+  float repulsiveConstant;
+  float dampingConstant;
+  float playbackSpeed;
+  boolean isSelected;
+  int REPULSION_RANGE = 3;
+  boolean applyUniformForce;
+
+  Node(PhysicsStore _store, float x, float y, float velX, float velY) {
+    springConstant = 2;
+    nomSpringDistance = 1;
+    repulsiveConstant = springConstant * (desiredEquilibriumDistance*desiredEquilibriumDistance);
+    dampingConstant = 0.5f*springConstant; //2*springConstant;
+    playbackSpeed = 5;
+    isSelected = false;
+    desiredEquilibriumDistance = 40;   // four ball widths
+    store = _store;
+    id = store.add(x, y, velX, velY, 1);
+    applyUniformForce = false;
+  }
+
+  void setName(String _name) {
+    name = _name;
+  }
+
+  /* The setters change the simulation's state, so they may only be called on the
+     simulation thread (see SimulationThread.post()) */
+  void setPosition(float x, float y) {
+    if (id < 0) {
+      return;   // removed from the graph after the command was posted
+    }
+    store.px[id] = x;
+    store.py[id] = y;
+    /* Being dragged wakes the ball and everything it is attached to */
+    store.wake(id);
+    Topology t = store.topology;
+    for (int k = t.firstLink(id); k != Topology.END; k = t.nextLink(id, k)) {
+      store.wake(t.link(k));
+    }
+  }
+
+  float getSpeed() {
+    return (float) Math.sqrt(store.vx[id]*store.vx[id] + store.vy[id]*store.vy[id]);
+  }
+
+  void addVelocity(float dvx, float dvy) {
+    if (id < 0) {
+      return;
+    }
+    store.vx[id] += dvx;
+    store.vy[id] += dvy;
+    store.wake(id);
+  }
+
+  /* Every ball that is not attracted to this one (and is not this one) repels it */
+  boolean isAttractedTo(Node ball) {
+    return store.topology.isLinked(id, ball.id);
+  }
+
+  /* Distance beyond which this ball no longer feels any repulsion */
+  float repulsionRadius() {
+    return REPULSION_RANGE*desiredEquilibriumDistance;
+  }
+}
@@ -0,0 +1,200 @@
+import java.util.Arrays;
+
+/*
+Numbers the node names of a graph: every distinct name gets a dense int id (0, 1, 2...
+in order of first appearance) and is kept as one canonical String.
+
+Names are looked up straight from a range of the line they were read from, with the
+surrounding whitespace ignored, so reading an edge list allocates nothing for a name
+that has been seen before (no substrings, no trimmed copies, no boxed ids).  "A->B"
+and " A -> B " name the same two nodes.
+
+The table is open addressing with linear probing over ids; it keeps each name's hash,
+so growing it never hashes a name again.  remove() moves the last id into the gap, the
+same way PhysicsStore.remove() does, so the ids keep matching the balls' ids.
+*/
+public class NodeDictionary {
+  String[] names;     // by id
+  int[] hashes;       // by id
+  int[] table;        // id+1 per slot, 0 when empty
+  int mask;
+  int count;
+
+  NodeDictionary() {
+    names = new String[16];
+    hashes = new int[16];
+    table = new int[32];
+    mask = table.length-1;
+    count = 0;
+  }
+
+  int size() {
+    return count;
+  }
+
+  String name(int id) {
+    return names[id];
+  }
+
+  /* The id of a name, or -1 */
+  int find(String name) {
+    return find(name, 0, name.length());
+  }
+
+  int find(CharSequence line, int start, int end) {
+    while (start < end && isSpace(line.charAt(start))) {
+      start++;
+    }
+    while (end > start && isSpace(line.charAt(end-1))) {
+      end--;
+    }
+    return table[probe(hash(line, start, end), line, start, end)]-1;
+  }
+
+  /* The id of a name, which is added (as a new id) if it has not been seen before */
+  int intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  int intern(CharSequence line, int start, int end) {
+    while (start < end && isSpace(line.charAt(start))) {
+      start++;
+    }
+    while (end > start && isSpace(line.charAt(end-1))) {
+      end--;
+    }
+    return intern(line, start, end, hash(line, start, end));
+  }
+
+  /* intern() of a name that is already trimmed and whose hash() is known, such as a
+     name from another dictionary */
+  int intern(CharSequence line, int start, int end, int h) {
+    int slot = probe(h, line, start, end);
+    if (table[slot] != 0) {
+      return table[slot]-1;
+    }
+
+    int id = count++;
+    if (id == names.length) {
+      names = Arrays.copyOf(names, 2*id);
+      hashes = Arrays.copyOf(hashes, 2*id);
+    }
+    names[id] = line.subSequence(start, end).toString();
+    hashes[id] = h;
+    table[slot] = id+1;
+    /* Keep the table at most half full */
+    if (2*count > table.length) {
+      rehash(2*table.length);
+    }
+    return id;
+  }
+
+  /* Makes room for n names without growing the table on the way */
+  void reserve(int n) {
+    int slots = mask+1;
+    while (2*n > slots) {
+      slots *= 2;
+    }
+    if (slots > mask+1) {
+      rehash(slots);
+    }
+    if (names.length < n) {
+      names = Arrays.copyOf(names, n);
+      hashes = Arrays.copyOf(hashes, n);
+    }
+  }
+
+  /* The slot holding the name, or the empty slot where it would go */
+  int probe(int h, CharSequence line, int start, int end) {
+    int slot = spread(h) & mask;
+    while (table[slot] != 0) {
+      int id = table[slot]-1;
+      if (hashes[id] == h && matches(names[id], line, start, end)) {
+        break;
+      }
+      slot = (slot+1) & mask;
+    }
+    return slot;
+  }
+
+  /* Forgets the name with this id; the last id takes its place */
+  void remove(int id) {
+    unlink(id);
+    int last = --count;
+    if (id != last) {
+      int slot = slotOf(last);
+      table[slot] = id+1;
+      names[id] = names[last];
+      hashes[id] = hashes[last];
+    }
+    names[last] = null;
+  }
+
+  /* Takes id out of the table, shifting back the entries probed past it */
+  void unlink(int id) {
+    int hole = slotOf(id);
+    int slot = (hole+1) & mask;
+    while (table[slot] != 0) {
+      int home = spread(hashes[table[slot]-1]) & mask;
+      /* The entry can fill the hole unless its home lies cyclically in (hole, slot] */
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        table[hole] = table[slot];
+        hole = slot;
+      }
+      slot = (slot+1) & mask;
+    }
+    table[hole] = 0;
+  }
+
+  int slotOf(int id) {
+    int slot = spread(hashes[id]) & mask;
+    while (table[slot] != id+1) {
+      slot = (slot+1) & mask;
+    }
+    return slot;
+  }
+
+  void rehash(int size) {
+    table = new int[size];
+    mask = size-1;
+    for (int id = 0; id < count; id++) {
+      int slot = spread(hashes[id]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot+1) & mask;
+      }
+      table[slot] = id+1;
+    }
+  }
+
+  /* The same as String.hashCode() of the name */
+  static int hash(CharSequence line, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31*h + line.charAt(i);
+    }
+    return h;
+  }
+
+  /* String hashes of similar names differ in their low bits only a little */
+  static int spread(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  static boolean matches(String name, CharSequence line, int start, int end) {
+    if (name.length() != end - start) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) != line.charAt(start+i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* What Processing's trim() removes */
+  static boolean isSpace(char c) {
+    return c <= ' ' || c == '\u00a0';
+  }
+}
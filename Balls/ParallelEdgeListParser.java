@@ -0,0 +1,199 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/*
+Parses an edge list on every core of the machine.
+
+The file is cut into chunks of about chunkSize bytes, each boundary moved forward to the
+start of the next line, and a fixed pool of worker threads parses the chunks.  A worker
+has an EdgeListParser and a NodeDictionary of its own and keeps its chunk's edges in a
+plain int buffer, in the chunk's own ids, so the workers share nothing.
+
+The calling thread merges the chunks in file order as they come in: each chunk's names
+are interned into the real dictionary (a chunk numbers its names in order of first
+appearance, so the merged ids are exactly the ids a single pass would have given) and
+its edges are handed to the Handler in the real ids.  So the Handler sees the same ids
+and the same edges in the same order as with EdgeListParser (only the new names of a
+chunk are all announced before its edges), and is only ever called from one thread.
+At most two chunks per thread are parsed but not yet merged, which bounds the memory
+it takes however large the file is.
+*/
+public class ParallelEdgeListParser extends EdgeListParser {
+  String delimiterText;
+  int threads;
+  long chunkSize;
+
+  ParallelEdgeListParser(NodeDictionary _names, String _delimiter, int _threads) {
+    super(_names, _delimiter);
+    delimiterText = _delimiter;
+    threads = _threads;
+    chunkSize = 32 << 20;
+  }
+
+  void parse(File file, Handler handler) throws IOException {
+    long start = System.nanoTime();
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    ExecutorService pool = null;
+    long totalLines = 0;
+    long totalEdges = 0;
+    try {
+      FileChannel channel = raf.getChannel();
+      long[] bounds = split(channel);
+      int chunks = bounds.length-1;
+      if (threads <= 1 || chunks <= 1) {
+        parse(channel, 0, channel.size(), handler);
+        return;
+      }
+
+      pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "edge-list");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      ArrayList<Future<Chunk>> pending = new ArrayList<Future<Chunk>>();
+      int submitted = 0;
+      for (int k = 0; k < chunks; k++) {
+        while (submitted < chunks && submitted - k < 2*threads) {
+          pending.add(pool.submit(new Chunk(channel, bounds[submitted], bounds[submitted+1])));
+          submitted++;
+        }
+        Chunk chunk = pending.get(k).get();
+        pending.set(k, null);
+        merge(chunk, handler);
+        totalLines += chunk.lines;
+        totalEdges += chunk.edges;
+      }
+      lines = totalLines;
+      edges = totalEdges;
+      bytes = channel.size();
+      nanos = System.nanoTime() - start;
+    } catch (NotUTF8 e) {
+      throw new IOException(file + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while reading " + file);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof NotUTF8) {
+        /* The chunks before this one are merged, so their lines are counted */
+        throw new IOException(file + ": line " + (totalLines + ((NotUTF8) e.getCause()).line)
+          + " is not valid UTF-8");
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+      raf.close();
+    }
+  }
+
+  /* The chunk boundaries: bounds[k] .. bounds[k+1] is chunk k, and every chunk but the
+     first starts right after a newline */
+  long[] split(FileChannel channel) throws IOException {
+    long size = channel.size();
+    long[] bounds = new long[(int) (size/chunkSize) + 2];
+    int n = 0;
+    bounds[n++] = 0;
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long position = chunkSize;
+    while (position < size) {
+      /* Forward to the next newline */
+      long next = -1;
+      while (next == -1 && position < size) {
+        probe.clear();
+        int read = channel.read(probe, position);
+        if (read <= 0) {
+          break;
+        }
+        for (int i = 0; i < read; i++) {
+          if (probe.get(i) == '\n') {
+            next = position + i + 1;
+            break;
+          }
+        }
+        if (next == -1) {
+          position += read;
+        }
+      }
+      if (next == -1 || next >= size) {
+        break;
+      }
+      bounds[n++] = next;
+      position = next + chunkSize;
+    }
+    bounds[n++] = size;
+    return Arrays.copyOf(bounds, n);
+  }
+
+  /* A chunk's names into the real dictionary, then its edges to the handler */
+  void merge(Chunk chunk, Handler handler) {
+    NodeDictionary local = chunk.dictionary;
+    int[] id = new int[local.size()];
+    names.reserve(names.size() + id.length);
+    for (int i = 0; i < id.length; i++) {
+      int size = names.size();
+      String name = local.name(i);
+      id[i] = names.intern(name, 0, name.length(), local.hashes[i]);
+      if (id[i] == size) {
+        handler.node(id[i]);
+      }
+    }
+    for (int k = 0; k < chunk.edges; k++) {
+      handler.edge(id[chunk.from[k]], id[chunk.to[k]]);
+    }
+  }
+
+  /* One chunk, parsed by a worker into its own dictionary and edge buffer */
+  class Chunk implements Callable<Chunk>, Handler {
+    FileChannel channel;
+    long start;
+    long end;
+
+    NodeDictionary dictionary;   // the chunk's own ids
+    int[] from;
+    int[] to;
+    int edges;
+    long lines;
+
+    Chunk(FileChannel _channel, long _start, long _end) {
+      channel = _channel;
+      start = _start;
+      end = _end;
+    }
+
+    public Chunk call() throws IOException {
+      dictionary = new NodeDictionary();
+      /* Roughly one edge per 20 bytes, grown if need be */
+      int capacity = (int) Math.max(16, (end - start)/20);
+      from = new int[capacity];
+      to = new int[capacity];
+      EdgeListParser parser = new EdgeListParser(dictionary, delimiterText);
+      parser.mapped = mapped;
+      parser.window = window;
+      parser.parse(channel, start, end, this);
+      lines = parser.lines;
+      return this;
+    }
+
+    public void node(int id) {
+    }
+
+    public void edge(int a, int b) {
+      if (edges == from.length) {
+        from = Arrays.copyOf(from, 2*edges);
+        to = Arrays.copyOf(to, 2*edges);
+      }
+      from[edges] = a;
+      to[edges] = b;
+      edges++;
+    }
+  }
+}
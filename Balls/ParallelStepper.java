@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Steps the simulation on every core of the machine.
+
+The balls are split into contiguous chunks of ids which are handed to worker threads.
+A step happens in two phases: first every chunk computes the forces on its balls from
+the current positions, and only once all of the forces are known does every chunk
+integrate its balls (see Simulation.computeForces() and integrate()).
+
+Each ball only ever writes its own slots of the PhysicsStore, and the grid/quadtree are
+read-only while the forces are computed, so the workers never need to lock anything.
+
+The workers (threads-1 of them: the thread that steps does its share too) live as long
+as the stepper and wait for each phase by parking, and the chunks are claimed off a
+counter, so a step allocates nothing: no tasks, no futures, no queue nodes.  A
+worker that throws makes the step throw too, once every worker is done with the phase,
+instead of going on with half of the forces.
+*/
+public class ParallelStepper {
+  int threads;
+  ArrayList<StepChunk> chunks;
+  int chunkCount;        // of chunks, the ones in use this step
+  Thread[] workers;
+  volatile boolean alive;
+
+  /* What the chunks do in the current phase */
+  final int PHASE_FORCES = 0;
+  final int PHASE_INTEGRATE = 1;
+  int phase;
+
+  Simulation sim;
+
+  /* One phase: workers wait for generation to change, claim chunks off nextChunk, and
+     the last one to finish wakes the stepping thread */
+  volatile int generation;
+  AtomicInteger nextChunk;
+  AtomicInteger running;
+  volatile Thread stepping;
+  volatile Throwable failure;
+
+  ParallelStepper(int _threads) {
+    threads = Math.max(1, _threads);
+    chunks = new ArrayList<StepChunk>();
+    nextChunk = new AtomicInteger();
+    running = new AtomicInteger();
+  }
+
+  /* Compute the forces on and then integrate balls 0..n-1 of the simulation */
+  void step(Simulation _sim, int n) {
+    sim = _sim;
+    partition(n);
+
+    phase = PHASE_FORCES;
+    runChunks();
+    phase = PHASE_INTEGRATE;
+    runChunks();
+  }
+
+  /* A few chunks per thread, so that one slow chunk (a dense cluster) does not hold up
+     the others.  The chunks are kept and only get new bounds when the number of balls
+     changes (which, with sleeping, it does all the time). */
+  void partition(int n) {
+    chunkCount = Math.min(n, threads*4);
+    for (int k = 0; k < chunkCount; k++) {
+      if (k == chunks.size()) {
+        chunks.add(new StepChunk());
+      }
+      StepChunk chunk = chunks.get(k);
+      chunk.lo = (int) ((long) n*k/chunkCount);
+      chunk.hi = (int) ((long) n*(k+1)/chunkCount);
+    }
+  }
+
+  /* Runs every chunk in the current phase and returns once they are all done */
+  void runChunks() {
+    if (workers == null) {
+      start();
+    }
+    stepping = Thread.currentThread();
+    failure = null;
+    nextChunk.set(0);
+    running.set(workers.length);
+    /* Publishes phase, sim and the chunks to the workers */
+    generation++;
+    for (Thread w : workers) {
+      LockSupport.unpark(w);
+    }
+
+    try {
+      claimChunks();
+    } catch (Throwable t) {
+      failure = t;
+    }
+
+    /* The workers still write the store until they are done, so wait for them whatever
+       happens, and hand an interrupt on to whoever asks afterwards */
+    boolean interrupted = false;
+    while (running.get() > 0) {
+      LockSupport.park(this);
+      if (Thread.interrupted()) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw new RuntimeException("A simulation step failed", failure);
+    }
+  }
+
+  void claimChunks() {
+    int k = nextChunk.getAndIncrement();
+    while (k < chunkCount) {
+      chunks.get(k).run();
+      k = nextChunk.getAndIncrement();
+    }
+  }
+
+  void start() {
+    alive = true;
+    workers = new Thread[threads-1];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(new Runnable() {
+        public void run() {
+          work();
+        }
+      }, "ball-physics");
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /* A worker: one phase per change of generation */
+  void work() {
+    int seen = 0;
+    while (true) {
+      while (alive && generation == seen) {
+        LockSupport.park(this);
+      }
+      if (!alive) {
+        return;
+      }
+      seen = generation;
+      try {
+        claimChunks();
+      } catch (Throwable t) {
+        failure = t;
+      }
+      if (running.decrementAndGet() == 0) {
+        LockSupport.unpark(stepping);
+      }
+    }
+  }
+
+  void shutdown() {
+    alive = false;
+    if (workers != null) {
+      for (Thread w : workers) {
+        LockSupport.unpark(w);
+      }
+    }
+  }
+
+  class StepChunk {
+    int lo;
+    int hi;
+
+    void run() {
+      if (phase == PHASE_FORCES) {
+        sim.computeForces(lo, hi);
+      } else {
+        sim.integrate(lo, hi);
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+import java.util.Arrays;
+
+/*
+Physical state of every ball in the network, stored as parallel primitive arrays.
+
+A ball's position, velocity, mass and accumulated force all live at the same index
+(the ball's id) in the arrays below, so the force loop walks straight through
+contiguous memory instead of chasing a pair of PVectors per ball.  Ball itself is
+only a view onto one index of the store.
+
+Positions are double buffered: a simulation step reads px/py and writes nx/ny, then
+swaps the two (see Simulation.step()).
+
+The renderer never reads px/py, because the simulation runs on its own thread.  It
+reads rx/ry, one of three render buffers: after a step the simulation copies the
+positions into its own buffer and publish() swaps that with the "ready" buffer, and
+at the start of a frame acquire() swaps the ready buffer in as rx/ry if it is newer.
+Nobody ever writes a buffer somebody else is reading, and the lock is only held for
+a couple of reference swaps.
+
+The edges between the balls are kept in topology, by the same ids.
+*/
+public class PhysicsStore {
+  int count;
+  float[] px;
+  float[] py;
+  float[] nx;
+  float[] ny;
+  float[] vx;
+  float[] vy;
+  float[] fx;
+  float[] fy;
+  float[] mass;
+
+  /* Acceleration at the start of the last step (see VerletIntegrator) */
+  float[] ax;
+  float[] ay;
+
+  /* Sleeping (see Simulation.updateSleep()) */
+  boolean[] asleep;
+  int[] calmSteps;
+
+  /* Render buffers (see above) */
+  float[] rx;
+  float[] ry;
+  float[] readyX;
+  float[] readyY;
+  float[] publishX;
+  float[] publishY;
+  boolean fresh;
+
+  Topology topology;
+
+  PhysicsStore() {
+    this(16);
+  }
+
+  PhysicsStore(int capacity) {
+    count = 0;
+    px = new float[capacity];
+    py = new float[capacity];
+    nx = new float[capacity];
+    ny = new float[capacity];
+    vx = new float[capacity];
+    vy = new float[capacity];
+    fx = new float[capacity];
+    fy = new float[capacity];
+    mass = new float[capacity];
+    ax = new float[capacity];
+    ay = new float[capacity];
+    asleep = new boolean[capacity];
+    calmSteps = new int[capacity];
+    rx = new float[capacity];
+    ry = new float[capacity];
+    readyX = new float[capacity];
+    readyY = new float[capacity];
+    publishX = new float[capacity];
+    publishY = new float[capacity];
+    fresh = false;
+    topology = new Topology(this);
+  }
+
+  /* Adds a ball to the store and returns its id */
+  int add(float x, float y, float velX, float velY, float m) {
+    if (count == px.length) {
+      grow(Math.max(16, 2*px.length));
+    }
+    int id = count++;
+    px[id] = x;
+    py[id] = y;
+    rx[id] = x;
+    ry[id] = y;
+    readyX[id] = x;
+    readyY[id] = y;
+    vx[id] = velX;
+    vy[id] = velY;
+    fx[id] = 0;
+    fy[id] = 0;
+    mass[id] = m;
+    ax[id] = 0;
+    ay[id] = 0;
+    asleep[id] = false;
+    calmSteps[id] = 0;
+    topology.addNode();
+    return id;
+  }
+
+  void grow(int capacity) {
+    px = Arrays.copyOf(px, capacity);
+    py = Arrays.copyOf(py, capacity);
+    nx = Arrays.copyOf(nx, capacity);
+    ny = Arrays.copyOf(ny, capacity);
+    vx = Arrays.copyOf(vx, capacity);
+    vy = Arrays.copyOf(vy, capacity);
+    fx = Arrays.copyOf(fx, capacity);
+    fy = Arrays.copyOf(fy, capacity);
+    mass = Arrays.copyOf(mass, capacity);
+    ax = Arrays.copyOf(ax, capacity);
+    ay = Arrays.copyOf(ay, capacity);
+    asleep = Arrays.copyOf(asleep, capacity);
+    calmSteps = Arrays.copyOf(calmSteps, capacity);
+    rx = Arrays.copyOf(rx, capacity);
+    ry = Arrays.copyOf(ry, capacity);
+    readyX = Arrays.copyOf(readyX, capacity);
+    readyY = Arrays.copyOf(readyY, capacity);
+    publishX = Arrays.copyOf(publishX, capacity);
+    publishY = Arrays.copyOf(publishY, capacity);
+  }
+
+  /* Removes ball id by moving the last ball into its slot (ids stay dense, see
+     Simulation.removeNode()) */
+  void remove(int id) {
+    topology.removeNode(id);
+    int last = --count;
+    if (id == last) {
+      return;
+    }
+    px[id] = px[last];
+    py[id] = py[last];
+    nx[id] = nx[last];
+    ny[id] = ny[last];
+    vx[id] = vx[last];
+    vy[id] = vy[last];
+    fx[id] = fx[last];
+    fy[id] = fy[last];
+    mass[id] = mass[last];
+    ax[id] = ax[last];
+    ay[id] = ay[last];
+    asleep[id] = asleep[last];
+    calmSteps[id] = calmSteps[last];
+    rx[id] = rx[last];
+    ry[id] = ry[last];
+    readyX[id] = readyX[last];
+    readyY[id] = readyY[last];
+    publishX[id] = publishX[last];
+    publishY[id] = publishY[last];
+  }
+
+  void wake(int id) {
+    asleep[id] = false;
+    calmSteps[id] = 0;
+  }
+
+  /* Simulation side: hand the current positions over to the renderer */
+  void publish() {
+    System.arraycopy(px, 0, publishX, 0, count);
+    System.arraycopy(py, 0, publishY, 0, count);
+    synchronized (this) {
+      float[] t = readyX;
+      readyX = publishX;
+      publishX = t;
+      t = readyY;
+      readyY = publishY;
+      publishY = t;
+      fresh = true;
+    }
+  }
+
+  /* Render side: switch rx/ry over to the latest published positions, if any */
+  synchronized void acquire() {
+    if (fresh) {
+      float[] t = rx;
+      rx = readyX;
+      readyX = t;
+      t = ry;
+      ry = readyY;
+      readyY = t;
+      fresh = false;
+    }
+  }
+
+  /* Makes the positions written into nx/ny the current ones */
+  void swapPositions() {
+    float[] t = px;
+    px = nx;
+    nx = t;
+    t = py;
+    py = ny;
+    ny = t;
+  }
+}
@@ -0,0 +1,308 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+Barnes-Hut quadtree used to approximate the repulsive forces between balls.
+
+The tree is rebuilt from the ball positions once per simulation step.  Every cell
+stores the number of balls below it and the sum of their positions (their center of mass,
+since every ball has the same mass).  When a ball asks for its repulsive force, cells
+that are far enough away (cell size / distance < theta) are treated as a single
+body sitting at their center of mass, and cells that lie completely outside of the
+radius of influence are skipped altogether.
+
+All of the storage lives in flat arrays that are grown as needed and reused between
+steps, so rebuilding the tree does not create any garbage once it has warmed up.
+*/
+public class QuadTree {
+  int MAX_DEPTH = 24;
+
+  /* Cell storage */
+  float[] cellX;      // lower left corner of the cell
+  float[] cellY;
+  float[] cellSize;   // cells are square
+  float[] sumX;       // sum of body positions below this cell
+  float[] sumY;
+  int[] count;        // number of bodies below this cell
+  int[] firstChild;   // index of the first of the 4 children, -1 for a leaf
+  int[] head;         // first body stored in this leaf, -1 if empty
+  int[] depth;
+  int cellCount;
+
+  /* Body storage */
+  PhysicsStore store;
+  Node[] bodies;
+  float[] bodyX;
+  float[] bodyY;
+  int[] next;         // next body in the same leaf, -1 terminates the list
+  int bodyCount;
+
+  /* Traversal stack, one per thread so several threads can query the tree at once */
+  ThreadLocal<int[]> stacks;
+
+  QuadTree() {
+    allocateCells(64);
+    allocateBodies(16);
+    stacks = new ThreadLocal<int[]>() {
+      protected int[] initialValue() {
+        return new int[4*MAX_DEPTH + 4];
+      }
+    };
+  }
+
+  void allocateCells(int n) {
+    cellX = new float[n];
+    cellY = new float[n];
+    cellSize = new float[n];
+    sumX = new float[n];
+    sumY = new float[n];
+    count = new int[n];
+    firstChild = new int[n];
+    head = new int[n];
+    depth = new int[n];
+  }
+
+  void allocateBodies(int n) {
+    bodies = new Node[n];
+    bodyX = new float[n];
+    bodyY = new float[n];
+    next = new int[n];
+  }
+
+  void growCells() {
+    int n = cellX.length*2;
+    cellX = Arrays.copyOf(cellX, n);
+    cellY = Arrays.copyOf(cellY, n);
+    cellSize = Arrays.copyOf(cellSize, n);
+    sumX = Arrays.copyOf(sumX, n);
+    sumY = Arrays.copyOf(sumY, n);
+    count = Arrays.copyOf(count, n);
+    firstChild = Arrays.copyOf(firstChild, n);
+    head = Arrays.copyOf(head, n);
+    depth = Arrays.copyOf(depth, n);
+  }
+
+  /* Rebuild the tree from the current positions of the balls (balls are indexed by id) */
+  void build(PhysicsStore _store, ArrayList<? extends Node> balls) {
+    store = _store;
+    bodyCount = balls.size();
+    if (bodies.length < bodyCount) {
+      allocateBodies(bodyCount);
+    }
+
+    float minX = Float.MAX_VALUE;
+    float minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE;
+    float maxY = -Float.MAX_VALUE;
+    for (int i = 0; i < bodyCount; i++) {
+      bodies[i] = balls.get(i);
+      bodyX[i] = store.px[i];
+      bodyY[i] = store.py[i];
+      minX = Math.min(minX, bodyX[i]);
+      minY = Math.min(minY, bodyY[i]);
+      maxX = Math.max(maxX, bodyX[i]);
+      maxY = Math.max(maxY, bodyY[i]);
+    }
+
+    cellCount = 0;
+    if (bodyCount == 0) {
+      return;
+    }
+    int root = newCell(minX, minY, Math.max(Math.max(maxX-minX, maxY-minY), 1.0f) + 1.0f, 0);
+    for (int i = 0; i < bodyCount; i++) {
+      insert(root, i);
+    }
+  }
+
+  int newCell(float x, float y, float size, int d) {
+    if (cellCount == cellX.length) {
+      growCells();
+    }
+    int c = cellCount++;
+    cellX[c] = x;
+    cellY[c] = y;
+    cellSize[c] = size;
+    sumX[c] = 0;
+    sumY[c] = 0;
+    count[c] = 0;
+    firstChild[c] = -1;
+    head[c] = -1;
+    depth[c] = d;
+    return c;
+  }
+
+  void insert(int c, int i) {
+    while (true) {
+      count[c]++;
+      sumX[c] += bodyX[i];
+      sumY[c] += bodyY[i];
+
+      if (firstChild[c] == -1) {
+        if (head[c] == -1 || depth[c] >= MAX_DEPTH) {
+          /* Empty leaf (or too deep to split any further): store the body here */
+          next[i] = head[c];
+          head[c] = i;
+          return;
+        }
+        /* Occupied leaf: split it and push the resident body down one level */
+        int resident = head[c];
+        head[c] = -1;
+        float half = cellSize[c]/2.0f;
+        int first = newCell(cellX[c], cellY[c], half, depth[c]+1);
+        newCell(cellX[c]+half, cellY[c], half, depth[c]+1);
+        newCell(cellX[c], cellY[c]+half, half, depth[c]+1);
+        newCell(cellX[c]+half, cellY[c]+half, half, depth[c]+1);
+        firstChild[c] = first;
+
+        int rc = childFor(c, bodyX[resident], bodyY[resident]);
+        count[rc]++;
+        sumX[rc] += bodyX[resident];
+        sumY[rc] += bodyY[resident];
+        next[resident] = -1;
+        head[rc] = resident;
+      }
+      c = childFor(c, bodyX[i], bodyY[i]);
+    }
+  }
+
+  int childFor(int c, float x, float y) {
+    float half = cellSize[c]/2.0f;
+    int k = 0;
+    if (x >= cellX[c] + half) {
+      k += 1;
+    }
+    if (y >= cellY[c] + half) {
+      k += 2;
+    }
+    return firstChild[c] + k;
+  }
+
+  /* Adds the net repulsive force on ball b to store.fx/fy[b.id].  Uses the same linear
+     falloff as Simulation.computeForce(): Fmax at zero distance down to nothing at the cutoff
+     radius.
+
+     A cell that is treated as one body pushes with every ball below it, attractive or
+     not, so the walk takes every ball in range and the attractive balls' exact share
+     is taken back out afterwards, as SpatialGrid.addRepulsion() does. */
+  void addRepulsion(Node b, float theta, float Fmax, float cutoff) {
+    if (cellCount == 0) {
+      return;
+    }
+    float x = store.px[b.id];
+    float y = store.py[b.id];
+    float forceX = 0;
+    float forceY = 0;
+
+    int[] stack = stacks.get();
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int c = stack[--top];
+      if (count[c] == 0) {
+        continue;
+      }
+
+      /* Skip cells that lie entirely outside of the radius of influence */
+      float dx = Math.max(Math.max(cellX[c] - x, 0), x - (cellX[c] + cellSize[c]));
+      float dy = Math.max(Math.max(cellY[c] - y, 0), y - (cellY[c] + cellSize[c]));
+      if (dx*dx + dy*dy >= cutoff*cutoff) {
+        continue;
+      }
+
+      if (firstChild[c] == -1) {
+        /* Leaf: interact with every body exactly */
+        for (int i = head[c]; i != -1; i = next[i]) {
+          if (bodies[i] == b) {
+            continue;
+          }
+          float rx = x - bodyX[i];
+          float ry = y - bodyY[i];
+          float dist = (float) Math.sqrt(rx*rx + ry*ry);
+          if (dist < cutoff && dist > 0) {
+            float mag = Fmax - (Fmax/cutoff)*dist;
+            forceX += rx/dist*mag;
+            forceY += ry/dist*mag;
+          }
+        }
+        continue;
+      }
+
+      boolean inside = x >= cellX[c] && x < cellX[c] + cellSize[c]
+        && y >= cellY[c] && y < cellY[c] + cellSize[c];
+      float comX = sumX[c]/count[c];
+      float comY = sumY[c]/count[c];
+      float rx = x - comX;
+      float ry = y - comY;
+      float dist = (float) Math.sqrt(rx*rx + ry*ry);
+      /* Farthest corner of the cell, so we only approximate cells that sit completely
+         inside the radius of influence (a partially covered cell has no single falloff) */
+      float fx = Math.max(Math.abs(x - cellX[c]), Math.abs(x - (cellX[c] + cellSize[c])));
+      float fy = Math.max(Math.abs(y - cellY[c]), Math.abs(y - (cellY[c] + cellSize[c])));
+      boolean covered = fx*fx + fy*fy < cutoff*cutoff;
+      if (!inside && covered && dist > 0 && cellSize[c] < theta*dist) {
+        /* Far enough away: treat the whole cell as one body at its center of mass
+           (the cell is fully covered, so dist < cutoff here) */
+        float mag = count[c]*(Fmax - (Fmax/cutoff)*dist);
+        forceX += rx/dist*mag;
+        forceY += ry/dist*mag;
+      } else {
+        int first = firstChild[c];
+        stack[top++] = first;
+        stack[top++] = first+1;
+        stack[top++] = first+2;
+        stack[top++] = first+3;
+      }
+    }
+
+    /* Every attractive ball in range was counted above, exactly or as part of a cell,
+       so take it back out */
+    Topology t = store.topology;
+    for (int m = t.firstLink(b.id); m != Topology.END; m = t.nextLink(b.id, m)) {
+      int j = t.link(m);
+      float rx = x - store.px[j];
+      float ry = y - store.py[j];
+      float dist = (float) Math.sqrt(rx*rx + ry*ry);
+      if (dist < cutoff && dist > 0) {
+        float mag = Fmax - (Fmax/cutoff)*dist;
+        forceX -= rx/dist*mag;
+        forceY -= ry/dist*mag;
+      }
+    }
+    store.fx[b.id] += forceX;
+    store.fy[b.id] += forceY;
+  }
+
+  /* Wakes the sleeping balls within radius of x, y */
+  void wakeNear(float x, float y, float radius) {
+    if (cellCount == 0) {
+      return;
+    }
+    int[] stack = stacks.get();
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int c = stack[--top];
+      float dx = Math.max(Math.max(cellX[c] - x, 0), x - (cellX[c] + cellSize[c]));
+      float dy = Math.max(Math.max(cellY[c] - y, 0), y - (cellY[c] + cellSize[c]));
+      if (count[c] == 0 || dx*dx + dy*dy >= radius*radius) {
+        continue;
+      }
+      if (firstChild[c] == -1) {
+        for (int i = head[c]; i != -1; i = next[i]) {
+          int id = bodies[i].id;
+          float rx = x - bodyX[i];
+          float ry = y - bodyY[i];
+          if (store.asleep[id] && rx*rx + ry*ry < radius*radius) {
+            store.wake(id);
+          }
+        }
+        continue;
+      }
+      int first = firstChild[c];
+      stack[top++] = first;
+      stack[top++] = first+1;
+      stack[top++] = first+2;
+      stack[top++] = first+3;
+    }
+  }
+}
@@ -0,0 +1,389 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+The physics of the network: one call to step() advances every ball by one time step.
+
+A step is a Jacobi update.  Every force is computed from the positions at the start of
+the step (store.px/py), and the new positions are written into a second buffer
+(store.nx/ny) which is swapped in once every ball has moved.  No ball ever sees
+another ball's new position half way through a step, so the result does not depend on
+the order of the balls, and whatever reads store.px/py between steps (the renderer)
+always sees a completed snapshot.
+
+With sleeping turned on, only the active set is stepped.  A ball whose speed and net
+force stay below sleepSpeed and sleepForce for sleepSteps steps in a row goes to sleep:
+it keeps its place (and keeps repelling the balls around it) but costs nothing until it
+is woken up again, which happens when one of its attractive balls moves, when a ball
+that moves comes within repulsion range of it (so it is pushed back rather than acting
+as a wall), when it is dragged, when it is thrown by explode() or when the equilibrium
+distance changes.
+*/
+public class Simulation {
+  PhysicsStore store;
+  ArrayList<? extends Node> balls;   // balls.get(i) is the ball at index i of the store
+
+  /* Repulsion engines */
+  static final int REPULSION_DIRECT = 0;
+  static final int REPULSION_BARNES_HUT = 1;
+  static final int REPULSION_GRID = 2;
+  int repulsionMode;
+  float barnesHutTheta;
+  QuadTree quadTree;
+  SpatialGrid spatialGrid;
+
+  /* Multi-core stepping */
+  int PARALLEL_THRESHOLD = 2000;
+  boolean parallelStepping;
+  ParallelStepper parallelStepper;
+
+  /* The walls the balls bounce off */
+  float boundsWidth;
+  float boundsHeight;
+
+  float framerate;
+
+  /* Time stepping (see Integrator and StepController) */
+  Integrator integrator;
+  boolean adaptiveStep;
+  StepController stepController;
+  float stepSize;         // seconds, before Ball.playbackSpeed
+  float lastStepSize;
+
+  /* Sleeping / active set */
+  boolean sleeping;
+  float sleepSpeed;
+  float sleepForce;
+  int sleepSteps;
+  float wakeDistance;     // moving further than this in one step wakes the attractive balls
+  int[] active;           // ids of the balls stepped this step
+  int activeCount;
+
+  Random random;
+
+  Simulation(PhysicsStore _store, ArrayList<? extends Node> _balls) {
+    this(_store, _balls, new ParallelStepper(Runtime.getRuntime().availableProcessors()));
+  }
+
+  /* Simulations that run one after the other can share a single pool of workers */
+  Simulation(PhysicsStore _store, ArrayList<? extends Node> _balls, ParallelStepper _parallelStepper) {
+    store = _store;
+    balls = _balls;
+    repulsionMode = REPULSION_GRID;
+    barnesHutTheta = 0.7f;
+    quadTree = new QuadTree();
+    spatialGrid = new SpatialGrid();
+    parallelStepping = true;
+    parallelStepper = _parallelStepper;
+    /* No far walls until somebody calls setBounds() */
+    boundsWidth = Float.MAX_VALUE;
+    boundsHeight = Float.MAX_VALUE;
+    framerate = 60;
+    integrator = new VerletIntegrator();
+    adaptiveStep = true;
+    stepController = new StepController();
+    stepSize = 0;
+    lastStepSize = 0;
+    sleeping = false;
+    sleepSpeed = 1.0f;
+    sleepForce = 1.0f;
+    sleepSteps = 30;
+    wakeDistance = 0.05f;
+    active = new int[store.count];
+    activeCount = 0;
+    random = new Random();
+  }
+
+  void setBounds(float _width, float _height) {
+    boundsWidth = _width;
+    boundsHeight = _height;
+  }
+
+  /* Advance every ball that is awake and not selected by one time step */
+  void step() {
+    float nominal = 1.0f/framerate;
+    lastStepSize = stepSize > 0 ? stepSize : nominal;
+    stepSize = adaptiveStep ? stepController.scale*nominal : nominal;
+
+    /* Whatever edits were made to the graph since the last step */
+    store.topology.update();
+
+    if (repulsionMode == REPULSION_BARNES_HUT) {
+      quadTree.build(store, balls);
+    } else if (repulsionMode == REPULSION_GRID) {
+      spatialGrid.build(store, balls);
+    }
+
+    collectActive();
+    if (activeCount < store.count) {
+      /* Sleeping balls stay where they are in the next buffer too */
+      System.arraycopy(store.px, 0, store.nx, 0, store.count);
+      System.arraycopy(store.py, 0, store.ny, 0, store.count);
+    }
+
+    /* Big graphs: compute every force on all cores, then move */
+    if (parallelStepping && activeCount >= PARALLEL_THRESHOLD) {
+      parallelStepper.step(this, activeCount);
+    } else {
+      computeForces(0, activeCount);
+      integrate(0, activeCount);
+    }
+    if (adaptiveStep) {
+      stepController.update(this);
+    }
+    if (sleeping) {
+      updateSleep();
+    }
+    store.swapPositions();
+  }
+
+  void collectActive() {
+    if (active.length < store.count) {
+      active = new int[store.count];
+    }
+    activeCount = 0;
+    for (int i = 0; i < store.count; i++) {
+      if (!sleeping || !store.asleep[i]) {
+        active[activeCount++] = i;
+      }
+    }
+  }
+
+  /* Puts calm balls to sleep and wakes the attractive balls of the ones that moved, and
+     the balls within their repulsion range */
+  void updateSleep() {
+    for (int k = 0; k < activeCount; k++) {
+      int i = active[k];
+      float dx = store.nx[i] - store.px[i];
+      float dy = store.ny[i] - store.py[i];
+      if (dx*dx + dy*dy > wakeDistance*wakeDistance) {
+        Topology t = store.topology;
+        for (int m = t.firstLink(i); m != Topology.END; m = t.nextLink(i, m)) {
+          int other = t.link(m);
+          if (store.asleep[other]) {
+            store.wake(other);
+          }
+        }
+        wakeNear(i);
+      }
+
+      float speed = (float) Math.sqrt(store.vx[i]*store.vx[i] + store.vy[i]*store.vy[i]);
+      float force = (float) Math.sqrt(store.fx[i]*store.fx[i] + store.fy[i]*store.fy[i]);
+      if (speed < sleepSpeed && force < sleepForce) {
+        store.calmSteps[i]++;
+        if (store.calmSteps[i] >= sleepSteps) {
+          store.asleep[i] = true;
+          store.vx[i] = 0;
+          store.vy[i] = 0;
+          store.ax[i] = 0;
+          store.ay[i] = 0;
+        }
+      } else {
+        store.calmSteps[i] = 0;
+      }
+    }
+  }
+
+  /* Wakes the sleeping balls within repulsion range of where ball i moved to.  The
+     grid or the quadtree built for this step finds them; sleeping balls have not moved
+     since it was built. */
+  void wakeNear(int i) {
+    float x = store.nx[i];
+    float y = store.ny[i];
+    float radius = balls.get(i).repulsionRadius();
+    if (repulsionMode == REPULSION_GRID) {
+      spatialGrid.wakeNear(x, y, radius);
+    } else if (repulsionMode == REPULSION_BARNES_HUT) {
+      quadTree.wakeNear(x, y, radius);
+    } else {
+      for (int j = 0; j < store.count; j++) {
+        float rx = x - store.px[j];
+        float ry = y - store.py[j];
+        if (store.asleep[j] && rx*rx + ry*ry < radius*radius) {
+          store.wake(j);
+        }
+      }
+    }
+  }
+
+  /* Editing the graph of a live simulation.  None of these may run at the same time as
+     step(): the sketch applies them between two steps (see editGraph()).  They wake
+     the balls involved; a removal takes effect at once, and a new edge is recorded by
+     the Topology until its next update(), at the latest when the next step starts. */
+
+  /* Adds an edge from a to b, which attaches them with a spring */
+  void link(Node a, Node b) {
+    store.topology.addEdge(a.id, b.id);
+  }
+
+  /* Removes the edge from a to b (the spring stays if there is one from b to a) */
+  void unlink(Node a, Node b) {
+    store.topology.removeEdge(a.id, b.id);
+  }
+
+  /* Moves a new ball next to a ball it is attached to, so it joins the layout without
+     disturbing it */
+  void placeNear(Node n, Node neighbor) {
+    float r = n.desiredEquilibriumDistance;
+    store.px[n.id] = store.px[neighbor.id] + r*(2*random.nextFloat() - 1);
+    store.py[n.id] = store.py[neighbor.id] + r*(2*random.nextFloat() - 1);
+    store.vx[n.id] = 0;
+    store.vy[n.id] = 0;
+    store.wake(n.id);
+  }
+
+  /* Takes ball n and all of its edges out of the simulation.  The last ball moves into
+     n's id, so ids stay dense and balls.get(i) is still the ball at index i. */
+  void removeNode(Node n) {
+    int id = n.id;
+    store.remove(id);
+    moveLast(balls, id);
+    if (id < balls.size()) {
+      balls.get(id).id = id;
+    }
+    n.id = -1;
+  }
+
+  <T extends Node> void moveLast(ArrayList<T> list, int id) {
+    T last = list.remove(list.size()-1);
+    if (id < list.size()) {
+      list.set(id, last);
+    }
+  }
+
+  void wakeAll() {
+    for (int i = 0; i < store.count; i++) {
+      store.wake(i);
+    }
+  }
+
+  /* Computes the force on active balls lo..hi-1 (positions in the active list) */
+  void computeForces(int lo, int hi) {
+    for (int k = lo; k < hi; k++) {
+      computeForce(active[k]);
+    }
+  }
+
+  /* Writes the new position of active balls lo..hi-1 into store.nx/ny, using the
+     forces stored by computeForces() */
+  void integrate(int lo, int hi) {
+    for (int k = lo; k < hi; k++) {
+      int i = active[k];
+      Node b = balls.get(i);
+      if (b.isSelected) {
+        /* Selected balls are held in place (and may be dragged around by the mouse) */
+        store.nx[i] = store.px[i];
+        store.ny[i] = store.py[i];
+        continue;
+      }
+      integrator.move(store, i, b.playbackSpeed*stepSize, b.playbackSpeed*lastStepSize);
+      checkWalls(i);
+    }
+  }
+
+  /* Check for collisions with the walls */
+  void checkWalls(int i) {
+    float[] nx = store.nx;
+    float[] ny = store.ny;
+    float eps = 1.0f;
+    if (nx[i] < 0 || nx[i] > boundsWidth) {
+      store.vx[i] = -0.9f*store.vx[i];
+      if (nx[i] < 0) {
+        nx[i] = eps;
+      }
+      else {
+        nx[i] = boundsWidth - eps;
+      }
+    }
+    if (ny[i] < 0 || ny[i] > boundsHeight) {
+      store.vy[i] = -0.9f*store.vy[i];
+      if (ny[i] < 0) {
+        ny[i] = eps;
+      }
+      else {
+        ny[i] = boundsHeight - eps;
+      }
+    }
+  }
+
+  /* Stores the net force on ball i in store.fx/fy[i].  Nothing in here (or in the
+     repulsion engines) allocates, so stepping the simulation creates no garbage (see
+     AllocationCheck). */
+  void computeForce(int i) {
+    Node me = balls.get(i);
+    float[] px = store.px;
+    float[] py = store.py;
+    float x = px[i];
+    float y = py[i];
+    float desiredEquilibriumDistance = me.desiredEquilibriumDistance;
+
+    // Compute forces from attractive balls
+
+    float displacementX = 0;
+    float displacementY = 0;
+    Topology t = store.topology;
+    for (int k = t.firstLink(i); k != Topology.END; k = t.nextLink(i, k)) {
+      int j = t.link(k);
+      float distanceX = x - px[j];
+      float distanceY = y - py[j];
+      float mag = (float) Math.sqrt(distanceX*distanceX + distanceY*distanceY);
+      if (mag > 0) {
+        distanceX -= distanceX/mag*desiredEquilibriumDistance;
+        distanceY -= distanceY/mag*desiredEquilibriumDistance;
+      }
+      displacementX += distanceX;
+      displacementY += distanceY;
+    }
+    float forceX = -me.springConstant*displacementX;
+    float forceY = -me.springConstant*displacementY;
+
+
+    /* Compute Cumulative Repulsive Force
+     (net displacement is allowable because
+     force is linear combinations of vectors
+     (principle of superposition))
+     */
+    int n = me.REPULSION_RANGE;
+    float Fmax = 100;
+    if (repulsionMode == REPULSION_DIRECT) {
+      for (int j = 0; j < balls.size(); j++) {
+        Node b = balls.get(j);
+        if (j == i || me.isAttractedTo(b)) {
+          continue;
+        }
+        float dx = x - px[j];
+        float dy = y - py[j];
+        float mag = (float) Math.sqrt(dx*dx + dy*dy);
+
+        if (mag < desiredEquilibriumDistance*n && mag > 0) {
+
+          float repel = Fmax + (-Fmax/ (n*desiredEquilibriumDistance)) * mag;
+
+          forceX += dx/mag*repel;
+          forceY += dy/mag*repel;
+        }
+      }
+    }
+
+    // Compute damping force to prevent endless oscillation (used to bleed energy from total system).
+    // TODO -> relative velocity
+    forceX += -me.dampingConstant*store.vx[i];
+    forceY += -me.dampingConstant*store.vy[i];
+
+
+    float uniformForceMag = 0; // 100;
+
+    if (me.applyUniformForce) {
+      forceY += uniformForceMag;
+    }
+    store.fx[i] = forceX;
+    store.fy[i] = forceY;
+
+    /* The grid and the quadtree add their repulsion straight into store.fx/fy[i] */
+    if (repulsionMode == REPULSION_GRID) {
+      spatialGrid.addRepulsion(me, Fmax, me.repulsionRadius());
+    } else if (repulsionMode == REPULSION_BARNES_HUT) {
+      quadTree.addRepulsion(me, barnesHutTheta, Fmax, me.repulsionRadius());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+Runs the simulation on its own thread, as fast as the CPU allows.
+
+Every step uses the simulation's own time step (see Simulation.stepSize), no matter
+how long drawing a frame takes, so the layout converges at the speed of the
+physics instead of the speed of the renderer.  After each step the positions are
+published to the PhysicsStore's render buffers, and draw() just shows the latest
+published snapshot (see PhysicsStore.publish() and acquire()).
+
+The simulation thread is the only one allowed to touch the simulation's state.  The
+mouse and keyboard handlers post their changes (dragging a ball, an explosion, a new
+equilibrium distance...) as commands, and the commands run between two steps.
+
+Edits to the structure of the graph are the exception: the renderer walks the list of
+balls and their links, so those are changed on the animation thread instead, while it
+holds stepLock so the simulation is parked between two steps (see editGraph()).
+*/
+class SimulationThread implements Runnable {
+  Simulation sim;
+  Thread thread;
+  volatile boolean alive;
+  ConcurrentLinkedQueue<Runnable> commands;
+  volatile long steps;
+  ConvergenceMonitor monitor;
+  final Object stepLock = new Object();   // held while commands run and while stepping
+
+  SimulationThread(Simulation _sim) {
+    sim = _sim;
+    monitor = new ConvergenceMonitor();
+    commands = new ConcurrentLinkedQueue<Runnable>();
+    steps = 0;
+  }
+
+  void start() {
+    alive = true;
+    thread = new Thread(this, "ball-simulation");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    alive = false;
+  }
+
+  /* Start (or keep) stepping, and time a new run towards convergence */
+  void resume() {
+    post(new Runnable() {
+      public void run() {
+        monitor.reset();
+      }
+    });
+    optimizing = true;
+  }
+
+  /* Run a change to the simulation on the simulation thread, between two steps */
+  void post(Runnable command) {
+    commands.add(command);
+  }
+
+  public void run() {
+    while (alive) {
+      boolean changed = false;
+      synchronized (stepLock) {
+        try {
+          Runnable command = commands.poll();
+          while (command != null) {
+            command.run();
+            changed = true;
+            command = commands.poll();
+          }
+
+          if (optimizing) {
+            sim.step();
+            steps++;
+            changed = true;
+            if (monitor.update(sim.store)) {
+              /* Settled: stop stepping until the user stirs things up again, and keep
+                 the layout for the next time this graph is opened */
+              optimizing = false;
+              cacheLayout();
+            }
+          }
+        } catch (RuntimeException e) {
+          /* A failed command or step must not take the thread down with it: the
+             commands behind it would never run.  Stop stepping and carry on. */
+          println("Simulation stopped: " + e);
+          e.printStackTrace();
+          optimizing = false;
+          changed = true;
+        }
+
+        if (changed) {
+          sim.store.publish();
+        }
+      }
+      if (!changed) {
+        /* Paused and nothing to do: don't spin */
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
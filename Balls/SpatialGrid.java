@@ -0,0 +1,230 @@
+import java.util.ArrayList;
+
+/*
+Uniform-grid spatial hash used to find the balls inside each ball's radius of influence.
+
+The repulsive force between two balls is exactly zero beyond Ball.repulsionRadius(), so
+when the grid cells are as wide as that radius, every ball that can push on a given
+ball lives in the 3x3 block of cells around it.  The grid is rebuilt every step and
+only those 9 cells are visited per ball, which gives the same answer as testing every
+pair in roughly linear time.
+
+Cells are hashed into a table rather than laid out densely, so balls that get thrown
+far away (explode()) do not blow up the size of the grid.  Each body remembers its own
+cell coordinates so hash collisions never get counted twice.
+
+The bodies are counting-sorted by bucket when the grid is built, so every bucket is a
+contiguous run of the sorted arrays and a query reads memory in order.
+*/
+public class SpatialGrid {
+  float cellSize;
+
+  /* Hash table of cells: bodies of bucket k sit at [bucketStart[k], bucketStart[k+1]) */
+  int[] bucketStart;
+  int mask;
+
+  /* Body storage, in bucket order */
+  PhysicsStore store;
+  Node[] bodies;
+  float[] bodyX;
+  float[] bodyY;
+  int[] cellX;
+  int[] cellY;
+  int[] bodyBucket;   // bucket of each ball, indexed by id
+  int bodyCount;
+
+  boolean pairwise;   // use addRepulsionPairwise(), the reference kernel
+
+  SpatialGrid() {
+    allocateBuckets(16);
+    allocateBodies(16);
+    cellSize = 1;
+  }
+
+  void allocateBuckets(int n) {
+    bucketStart = new int[n+1];
+    mask = n-1;
+  }
+
+  void allocateBodies(int n) {
+    bodies = new Node[n];
+    bodyX = new float[n];
+    bodyY = new float[n];
+    cellX = new int[n];
+    cellY = new int[n];
+    bodyBucket = new int[n];
+  }
+
+  /* Rebuild the grid from the current positions of the balls (balls are indexed by id) */
+  void build(PhysicsStore _store, ArrayList<? extends Node> balls) {
+    store = _store;
+    bodyCount = balls.size();
+    if (bodies.length < bodyCount) {
+      allocateBodies(bodyCount);
+    }
+    /* Keep the table at least twice as large as the number of bodies (power of two) */
+    if (mask+1 < 2*bodyCount) {
+      int n = mask+1;
+      while (n < 2*bodyCount) {
+        n *= 2;
+      }
+      allocateBuckets(n);
+    }
+    for (int k = 0; k <= mask+1; k++) {
+      bucketStart[k] = 0;
+    }
+
+    cellSize = 1;
+    for (int i = 0; i < bodyCount; i++) {
+      cellSize = Math.max(cellSize, balls.get(i).repulsionRadius());
+    }
+
+    /* Count the bodies per bucket ... */
+    for (int i = 0; i < bodyCount; i++) {
+      int k = bucket((int) Math.floor(store.px[i]/cellSize), (int) Math.floor(store.py[i]/cellSize));
+      bodyBucket[i] = k;
+      bucketStart[k+1]++;
+    }
+    for (int k = 0; k <= mask; k++) {
+      bucketStart[k+1] += bucketStart[k];
+    }
+    /* ... then drop each one into its bucket (bucketStart[k] is used as the fill
+       pointer, which leaves it pointing at the start of bucket k+1) */
+    for (int i = 0; i < bodyCount; i++) {
+      int p = bucketStart[bodyBucket[i]]++;
+      bodies[p] = balls.get(i);
+      bodyX[p] = store.px[i];
+      bodyY[p] = store.py[i];
+      cellX[p] = (int) Math.floor(bodyX[p]/cellSize);
+      cellY[p] = (int) Math.floor(bodyY[p]/cellSize);
+    }
+    for (int k = mask+1; k > 0; k--) {
+      bucketStart[k] = bucketStart[k-1];
+    }
+    bucketStart[0] = 0;
+  }
+
+  int bucket(int cx, int cy) {
+    return ((cx*73856093) ^ (cy*19349663)) & mask;
+  }
+
+  /* Adds the net repulsive force on ball b to store.fx/fy[b.id], identical to testing
+     every non-attractive ball.
+
+     The loop over a bucket is kept to plain arithmetic on the sorted arrays: it takes
+     every ball in range, attractive or not, and the attractive balls' share (the
+     ball's link run in the Topology) is taken back out afterwards.  A ball has a
+     handful of attractive balls but meets dozens of candidates, so this trades an
+     adjacency lookup per candidate for a few extra terms per ball.  The range test is
+     on the squared distance, so the square root is only taken for balls that actually
+     push. */
+  void addRepulsion(Node b, float Fmax, float cutoff) {
+    if (bodyCount == 0) {
+      return;
+    }
+    if (pairwise) {
+      addRepulsionPairwise(b, Fmax, cutoff);
+      return;
+    }
+    float x = store.px[b.id];
+    float y = store.py[b.id];
+    int cx = (int) Math.floor(x/cellSize);
+    int cy = (int) Math.floor(y/cellSize);
+    float cutoff2 = cutoff*cutoff;
+    float slope = Fmax/cutoff;
+    float forceX = 0;
+    float forceY = 0;
+
+    /* The repulsion of a ball at distance d is (Fmax - slope*d) along r/d, which is
+       r*(Fmax/d - slope) */
+    for (int gx = cx-1; gx <= cx+1; gx++) {
+      for (int gy = cy-1; gy <= cy+1; gy++) {
+        int k = bucket(gx, gy);
+        int end = bucketStart[k+1];
+        for (int i = bucketStart[k]; i < end; i++) {
+          float rx = x - bodyX[i];
+          float ry = y - bodyY[i];
+          float d2 = rx*rx + ry*ry;
+          if (d2 < cutoff2 && d2 > 0 && cellX[i] == gx && cellY[i] == gy) {
+            float f = Fmax/(float) Math.sqrt(d2) - slope;
+            forceX += rx*f;
+            forceY += ry*f;
+          }
+        }
+      }
+    }
+
+    /* Every attractive ball in range was counted above (the cells are at least as
+       wide as the cutoff), so take it back out */
+    Topology t = store.topology;
+    for (int m = t.firstLink(b.id); m != Topology.END; m = t.nextLink(b.id, m)) {
+      int j = t.link(m);
+      float rx = x - store.px[j];
+      float ry = y - store.py[j];
+      float d2 = rx*rx + ry*ry;
+      if (d2 < cutoff2 && d2 > 0) {
+        float f = Fmax/(float) Math.sqrt(d2) - slope;
+        forceX -= rx*f;
+        forceY -= ry*f;
+      }
+    }
+    store.fx[b.id] += forceX;
+    store.fy[b.id] += forceY;
+  }
+
+  /* The straightforward version, kept to check the one above against: skips the
+     attractive balls as it meets them */
+  void addRepulsionPairwise(Node b, float Fmax, float cutoff) {
+    float x = store.px[b.id];
+    float y = store.py[b.id];
+    int cx = (int) Math.floor(x/cellSize);
+    int cy = (int) Math.floor(y/cellSize);
+    float forceX = 0;
+    float forceY = 0;
+
+    for (int gx = cx-1; gx <= cx+1; gx++) {
+      for (int gy = cy-1; gy <= cy+1; gy++) {
+        int k = bucket(gx, gy);
+        for (int i = bucketStart[k]; i < bucketStart[k+1]; i++) {
+          if (cellX[i] != gx || cellY[i] != gy) {
+            continue;
+          }
+          float rx = x - bodyX[i];
+          float ry = y - bodyY[i];
+          float dist = (float) Math.sqrt(rx*rx + ry*ry);
+          /* Distance test first: it is much cheaper than the adjacency lookup */
+          if (dist < cutoff && dist > 0 && !b.isAttractedTo(bodies[i])) {
+            float mag = Fmax - (Fmax/cutoff)*dist;
+            forceX += rx/dist*mag;
+            forceY += ry/dist*mag;
+          }
+        }
+      }
+    }
+    store.fx[b.id] += forceX;
+    store.fy[b.id] += forceY;
+  }
+
+  /* Wakes the sleeping balls within radius (at most the cell size) of x, y */
+  void wakeNear(float x, float y, float radius) {
+    if (bodyCount == 0) {
+      return;
+    }
+    int cx = (int) Math.floor(x/cellSize);
+    int cy = (int) Math.floor(y/cellSize);
+    float radius2 = radius*radius;
+    for (int gx = cx-1; gx <= cx+1; gx++) {
+      for (int gy = cy-1; gy <= cy+1; gy++) {
+        int k = bucket(gx, gy);
+        for (int i = bucketStart[k]; i < bucketStart[k+1]; i++) {
+          int id = bodies[i].id;
+          float rx = x - bodyX[i];
+          float ry = y - bodyY[i];
+          if (store.asleep[id] && rx*rx + ry*ry < radius2 && cellX[i] == gx && cellY[i] == gy) {
+            store.wake(id);
+          }
+        }
+      }
+    }
+  }
+}
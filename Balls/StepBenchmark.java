@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+Times simulation steps on random graphs of growing size.
+
+   java -cp <sketch classes> StepBenchmark [sizes...] [options]
+
+builds, for every size (default 10000 100000 1000000 balls), a random graph with one
+edge per ball whose balls are scattered at the same density whatever the size (the
+square HeadlessLayout starts a graph in), steps it a few times to warm up and prints
+the mean and the fastest step time.  Every ball stays awake, so a step does the full
+amount of work.
+
+Options:
+   -n STEPS           timed steps per size (default 5)
+   -w STEPS           warm-up steps per size (default 3)
+   -r ENGINE          grid, barnes-hut or direct (default grid)
+   -j THREADS         worker threads (default 1, so the numbers are per core)
+   --seed N           seed for the graph and the positions (default 1)
+
+The same seed gives the same graphs, so runs on different versions of the physics
+can be compared.
+*/
+public class StepBenchmark {
+  int steps;
+  int warmup;
+  int repulsionMode;
+  int threads;
+  long seed;
+  ArrayList<Integer> sizes;
+
+  StepBenchmark() {
+    steps = 5;
+    warmup = 3;
+    repulsionMode = Simulation.REPULSION_GRID;
+    threads = 1;
+    seed = 1;
+    sizes = new ArrayList<Integer>();
+  }
+
+  public static void main(String[] args) {
+    StepBenchmark benchmark = new StepBenchmark();
+    try {
+      benchmark.parseArguments(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println("usage: StepBenchmark [sizes...] [-n steps] [-w steps] [-r grid|barnes-hut|direct] [-j threads] [--seed n]");
+      System.exit(2);
+    }
+    benchmark.run();
+  }
+
+  void parseArguments(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      try {
+        if (!arg.startsWith("-")) {
+          sizes.add(Integer.parseInt(arg));
+          continue;
+        }
+        if (i+1 == args.length) {
+          throw new IllegalArgumentException("Missing value for " + arg);
+        }
+        String value = args[++i];
+        if (arg.equals("-n")) {
+          steps = Math.max(1, Integer.parseInt(value));
+        } else if (arg.equals("-w")) {
+          warmup = Integer.parseInt(value);
+        } else if (arg.equals("-r")) {
+          if (value.equals("grid")) {
+            repulsionMode = Simulation.REPULSION_GRID;
+          } else if (value.equals("barnes-hut")) {
+            repulsionMode = Simulation.REPULSION_BARNES_HUT;
+          } else if (value.equals("direct")) {
+            repulsionMode = Simulation.REPULSION_DIRECT;
+          } else {
+            throw new IllegalArgumentException("Unknown repulsion engine: " + value);
+          }
+        } else if (arg.equals("-j")) {
+          threads = Math.max(1, Integer.parseInt(value));
+        } else if (arg.equals("--seed")) {
+          seed = Long.parseLong(value);
+        } else {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Not a number: " + arg);
+      }
+    }
+    if (sizes.isEmpty()) {
+      sizes.add(10000);
+      sizes.add(100000);
+      sizes.add(1000000);
+    }
+  }
+
+  void run() {
+    ParallelStepper stepper = new ParallelStepper(threads);
+    for (int n : sizes) {
+      Simulation sim = randomGraph(n, seed, stepper);
+      sim.repulsionMode = repulsionMode;
+      sim.parallelStepping = threads > 1;
+      for (int k = 0; k < warmup; k++) {
+        sim.step();
+      }
+      long total = 0;
+      long fastest = Long.MAX_VALUE;
+      for (int k = 0; k < steps; k++) {
+        long start = System.nanoTime();
+        sim.step();
+        long t = System.nanoTime() - start;
+        total += t;
+        fastest = Math.min(fastest, t);
+      }
+      System.out.println(n + " balls: " + String.format("%.1f", total/1e6/steps) + " ms per step (fastest "
+        + String.format("%.1f", fastest/1e6) + " ms), " + threads + " thread" + (threads > 1 ? "s" : ""));
+    }
+    stepper.shutdown();
+  }
+
+  /* n balls scattered over a square of 4*40*sqrt(n) px on a side, as HeadlessLayout
+     starts them, and one edge from every ball to a random other one */
+  static Simulation randomGraph(int n, long seed, ParallelStepper stepper) {
+    Random random = new Random(seed);
+    float side = 4*40*(float) Math.sqrt(Math.max(n, 1));
+    PhysicsStore store = new PhysicsStore(n);
+    ArrayList<Node> nodes = new ArrayList<Node>(n);
+    for (int i = 0; i < n; i++) {
+      nodes.add(new Node(store, side*random.nextFloat(), side*random.nextFloat(), 0, 0));
+    }
+    for (int i = 0; i < n && n > 1; i++) {
+      int j = random.nextInt(n-1);
+      store.topology.addEdge(i, j < i ? j : j+1);
+    }
+    Simulation sim = new Simulation(store, nodes, stepper);
+    sim.setBounds(side, side);
+    return sim;
+  }
+}
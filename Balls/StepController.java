@@ -0,0 +1,92 @@
+/*
+Adaptive time step: looks for the largest step the simulation can take without
+going unstable.
+
+The controller watches the kinetic energy of the balls that moved, averaged over
+blocks of `smoothSteps` steps (from one step to the next it jitters by 10-20% even
+in a calm network, so single steps say nothing).
+   * While the block average keeps dropping, the step grows by `growth` per block, up
+     to maxScale times the nominal step.
+   * When the average turns back up by more than riseTolerance after falling (the
+     network is oscillating), the step is cut by `shrink`, down to minScale.
+   * If any ball jumps more than maxMove of its equilibrium distance in a single step
+     (it is about to blow up), the step is cut straight away.
+
+The nominal step is 1/Simulation.framerate, so a scale of 1 is the old fixed step.
+*/
+public class StepController {
+  float scale;
+  float minScale;
+  float maxScale;
+  float growth;
+  float shrink;
+  int smoothSteps;
+  float maxMove;
+  float riseTolerance;
+
+  float blockEnergy;      // energy summed over the current block
+  int blockSteps;
+  float lastBlockEnergy;  // average over the previous block
+  boolean falling;
+
+  StepController() {
+    minScale = 0.1f;
+    maxScale = 8;
+    growth = 1.1f;
+    shrink = 0.5f;
+    smoothSteps = 10;
+    maxMove = 0.5f;
+    riseTolerance = 0.1f;
+    reset();
+  }
+
+  void reset() {
+    scale = 1;
+    blockEnergy = 0;
+    blockSteps = 0;
+    lastBlockEnergy = Float.MAX_VALUE;
+    falling = false;
+  }
+
+  /* Call after the balls have been moved (before the positions are swapped) */
+  void update(Simulation sim) {
+    PhysicsStore store = sim.store;
+    float energy = 0;
+    boolean tooFar = false;
+    for (int k = 0; k < sim.activeCount; k++) {
+      int i = sim.active[k];
+      energy += 0.5f*store.mass[i]*(store.vx[i]*store.vx[i] + store.vy[i]*store.vy[i]);
+      float dx = store.nx[i] - store.px[i];
+      float dy = store.ny[i] - store.py[i];
+      float limit = maxMove*sim.balls.get(i).desiredEquilibriumDistance;
+      if (dx*dx + dy*dy > limit*limit) {
+        tooFar = true;
+      }
+    }
+
+    if (tooFar) {
+      scale = Math.max(minScale, scale*shrink);
+      falling = false;
+      blockEnergy = 0;
+      blockSteps = 0;
+      return;
+    }
+
+    blockEnergy += energy;
+    blockSteps++;
+    if (blockSteps < smoothSteps) {
+      return;
+    }
+    float average = blockEnergy/blockSteps;
+    if (average < lastBlockEnergy) {
+      falling = true;
+      scale = Math.min(maxScale, scale*growth);
+    } else if (falling && average > lastBlockEnergy*(1 + riseTolerance)) {
+      scale = Math.max(minScale, scale*shrink);
+      falling = false;
+    }
+    lastBlockEnergy = average;
+    blockEnergy = 0;
+    blockSteps = 0;
+  }
+}
@@ -0,0 +1,536 @@
+import java.util.Arrays;
+
+/*
+The edges of the graph, stored once, as compressed sparse row (CSR) int arrays indexed
+by ball id (the same ids as the PhysicsStore that owns it):
+
+   * out-edges (a ball's children):  outTarget[outStart[i]] .. outTarget[outStart[i+1]-1]
+   * in-edges (a ball's parents):    inSource[inStart[i]] .. inSource[inStart[i+1]-1]
+   * links, the springs:             linkTarget[linkStart[i]] .. linkTarget[linkStart[i+1]-1]
+
+plus a delta of the edits made since the arrays were built.  An edge listed twice in the
+input, or in both directions, is one spring, and a ball's edge to itself is dropped.  A
+ball is attracted to exactly the balls it is linked to (see isLinked()).
+
+Editing a live graph costs time in proportion to the edit, not to the graph: an added
+edge goes on short lists per ball next to the arrays, a removed one into a set of cut
+entries that are skipped, and removing a ball (the last ball then takes its id, see
+PhysicsStore.remove()) is removing the edges of both and adding the last one's back
+under its new id.  Only once the edits since the arrays were built come to more than
+1/COMPACT_FRACTION of the balls and edges are the arrays built again, in one pass
+(compact()), which makes that pass a constant cost per edit.  So the edges of a ball
+are walked through the delta as well:
+
+   for (int k = t.firstLink(i); k != Topology.END; k = t.nextLink(i, k)) {
+     int j = t.link(k);
+     ...
+   }
+
+and the same way with firstOut()/out() and firstIn()/in().  Code that needs the arrays
+themselves reads a compacted() copy.
+
+addEdge() only records the edge, so reading a whole edge list is one sort rather than
+millions of edits, and it takes effect on the next update() (at the latest when the
+next step starts).  The sketch edits the graph a batch at a time between two steps and
+calls update() when the batch is done (see applyGraphEdits()), so the edges never change
+while something walks them.
+*/
+public class Topology {
+  static final int COMPACT_FRACTION = 8;
+  static final int END = Integer.MIN_VALUE;   // past the last edge of a walk
+
+  /* Kinds of delta lists and cut entries */
+  static final int OUT = 0;
+  static final int IN = 1;
+  static final int LINK = 2;
+
+  PhysicsStore store;
+  int count;            // balls, as in the store
+  int edges;            // out-edges, arrays and delta together
+
+  /* Built for balls 0..built-1 */
+  int built;
+  int[] outStart;
+  int[] outTarget;
+  int[] inStart;
+  int[] inSource;
+  int[] linkStart;
+  int[] linkTarget;
+
+  /* The delta: each ball's added entries of each kind are a list through deltaNext,
+     from outHead/inHead/linkHead (-1 when empty).  Removed array entries are in cuts,
+     and cutAt marks the rows that have any. */
+  int[] outHead;
+  int[] inHead;
+  int[] linkHead;
+  int[] deltaTarget;
+  int[] deltaNext;
+  int deltaCount;
+  LongSet added;        // keys of the delta's out-edges and links
+  LongSet cuts;         // keys of the removed array entries
+  boolean[] cutAt;
+  int edits;            // since the arrays were built
+
+  /* Recorded by addEdge(), until the next update() */
+  int[] addFrom;
+  int[] addTo;
+  int addCount;
+
+  Topology(PhysicsStore _store) {
+    store = _store;
+    count = 0;
+    outStart = new int[1];
+    outTarget = new int[0];
+    inStart = new int[1];
+    inSource = new int[0];
+    linkStart = new int[1];
+    linkTarget = new int[0];
+    outHead = new int[16];
+    inHead = new int[16];
+    linkHead = new int[16];
+    deltaTarget = new int[16];
+    deltaNext = new int[16];
+    added = new LongSet();
+    cuts = new LongSet();
+    cutAt = new boolean[0];
+    addFrom = new int[16];
+    addTo = new int[16];
+  }
+
+  /* Called by PhysicsStore.add(): a ball without edges, with the next id */
+  void addNode() {
+    if (outHead.length == count) {
+      outHead = Arrays.copyOf(outHead, 2*count);
+      inHead = Arrays.copyOf(inHead, 2*count);
+      linkHead = Arrays.copyOf(linkHead, 2*count);
+    }
+    outHead[count] = -1;
+    inHead[count] = -1;
+    linkHead[count] = -1;
+    count++;
+  }
+
+  /* Called by PhysicsStore.remove(): ball id and its edges go, the last ball takes its
+     id (and keeps its edges) */
+  void removeNode(int id) {
+    if (addCount > 0) {
+      update();
+    }
+    int last = count-1;
+    removeAll(id, children(id), parents(id));
+    if (id != last) {
+      int[] children = children(last);
+      int[] parents = parents(last);
+      removeAll(last, children, parents);
+      for (int j : children) {
+        addLive(id, j);
+      }
+      for (int j : parents) {
+        addLive(j, id);
+      }
+    }
+    count--;
+    edits++;
+  }
+
+  void removeAll(int i, int[] children, int[] parents) {
+    for (int j : children) {
+      removeLive(i, j);
+    }
+    for (int j : parents) {
+      removeLive(j, i);
+    }
+  }
+
+  int[] children(int i) {
+    int[] children = new int[16];
+    int n = 0;
+    for (int k = firstOut(i); k != END; k = nextOut(i, k)) {
+      if (n == children.length) {
+        children = Arrays.copyOf(children, 2*n);
+      }
+      children[n++] = out(k);
+    }
+    return Arrays.copyOf(children, n);
+  }
+
+  int[] parents(int i) {
+    int[] parents = new int[16];
+    int n = 0;
+    for (int k = firstIn(i); k != END; k = nextIn(i, k)) {
+      if (n == parents.length) {
+        parents = Arrays.copyOf(parents, 2*n);
+      }
+      parents[n++] = in(k);
+    }
+    return Arrays.copyOf(parents, n);
+  }
+
+  /* An edge from ball a to ball b (a depends on b) */
+  void addEdge(int a, int b) {
+    if (addCount == addFrom.length) {
+      addFrom = Arrays.copyOf(addFrom, 2*addCount);
+      addTo = Arrays.copyOf(addTo, 2*addCount);
+    }
+    addFrom[addCount] = a;
+    addTo[addCount] = b;
+    addCount++;
+  }
+
+  /* Removes the edge from a to b, if any.  The spring between them stays if there is
+     an edge from b to a. */
+  void removeEdge(int a, int b) {
+    if (addCount > 0) {
+      update();
+    }
+    if (isEdge(a, b)) {
+      removeLive(a, b);
+    }
+  }
+
+  /* Folds the recorded edges in, one by one into the delta, or all at once into fresh
+     arrays if the edits have come to too big a share of the graph.  Wakes the balls
+     whose springs changed. */
+  void update() {
+    if ((long) (addCount + edits)*COMPACT_FRACTION > edges + count) {
+      compact();
+      return;
+    }
+    for (int k = 0; k < addCount; k++) {
+      int a = addFrom[k];
+      int b = addTo[k];
+      if (a != b && !isEdge(a, b)) {
+        addLive(a, b);
+      }
+    }
+    addCount = 0;
+  }
+
+  void addLive(int a, int b) {
+    append(outHead, a, b);
+    append(inHead, b, a);
+    added.add(key(OUT, a, b));
+    if (!isLinked(a, b)) {
+      append(linkHead, a, b);
+      append(linkHead, b, a);
+      added.add(linkKey(a, b));
+    }
+    edges++;
+    edits++;
+    wake(a);
+    wake(b);
+  }
+
+  void removeLive(int a, int b) {
+    if (added.remove(key(OUT, a, b))) {
+      unlink(outHead, a, b);
+      unlink(inHead, b, a);
+    } else {
+      cut(OUT, a, b);
+      cut(IN, b, a);
+    }
+    if (!isEdge(b, a)) {
+      if (added.remove(linkKey(a, b))) {
+        unlink(linkHead, a, b);
+        unlink(linkHead, b, a);
+      } else {
+        cut(LINK, a, b);
+        cut(LINK, b, a);
+      }
+    }
+    edges--;
+    edits++;
+    wake(a);
+    wake(b);
+  }
+
+  /* Puts j at the front of i's list in head */
+  void append(int[] head, int i, int j) {
+    if (deltaCount == deltaTarget.length) {
+      deltaTarget = Arrays.copyOf(deltaTarget, 2*deltaCount);
+      deltaNext = Arrays.copyOf(deltaNext, 2*deltaCount);
+    }
+    deltaTarget[deltaCount] = j;
+    deltaNext[deltaCount] = head[i];
+    head[i] = deltaCount++;
+  }
+
+  /* Takes j off i's list in head (its slot is only reused once the arrays are built) */
+  void unlink(int[] head, int i, int j) {
+    int previous = -1;
+    for (int m = head[i]; m != -1; m = deltaNext[m]) {
+      if (deltaTarget[m] == j) {
+        if (previous == -1) {
+          head[i] = deltaNext[m];
+        } else {
+          deltaNext[previous] = deltaNext[m];
+        }
+        return;
+      }
+      previous = m;
+    }
+  }
+
+  void cut(int kind, int i, int j) {
+    cuts.add(key(kind, i, j));
+    cutAt[i] = true;
+  }
+
+  /* An entry j in the row of i; never 0 (see LongSet) */
+  static long key(int kind, int i, int j) {
+    return ((long) (kind+1) << 62) | ((long) i << 31) | j;
+  }
+
+  /* A link has one key whichever way round */
+  static long linkKey(int a, int b) {
+    return a < b ? key(LINK, a, b) : key(LINK, b, a);
+  }
+
+  /* Walking the edges of ball i: k is an index into the arrays, or ~index into the
+     delta, and END once there are no more */
+
+  int firstOut(int i) {
+    return i < built ? skip(OUT, outStart, outTarget, i, outStart[i]) : head(outHead, i);
+  }
+
+  int nextOut(int i, int k) {
+    return k >= 0 ? skip(OUT, outStart, outTarget, i, k+1) : next(k);
+  }
+
+  int out(int k) {
+    return k >= 0 ? outTarget[k] : deltaTarget[~k];
+  }
+
+  int firstIn(int i) {
+    return i < built ? skip(IN, inStart, inSource, i, inStart[i]) : head(inHead, i);
+  }
+
+  int nextIn(int i, int k) {
+    return k >= 0 ? skip(IN, inStart, inSource, i, k+1) : next(k);
+  }
+
+  int in(int k) {
+    return k >= 0 ? inSource[k] : deltaTarget[~k];
+  }
+
+  int firstLink(int i) {
+    return i < built ? skip(LINK, linkStart, linkTarget, i, linkStart[i]) : head(linkHead, i);
+  }
+
+  int nextLink(int i, int k) {
+    return k >= 0 ? skip(LINK, linkStart, linkTarget, i, k+1) : next(k);
+  }
+
+  int link(int k) {
+    return k >= 0 ? linkTarget[k] : deltaTarget[~k];
+  }
+
+  /* The first entry from k on in i's row that is not cut, or else i's delta */
+  int skip(int kind, int[] start, int[] target, int i, int k) {
+    int end = start[i+1];
+    if (cutAt[i]) {
+      while (k < end && cuts.contains(key(kind, i, target[k]))) {
+        k++;
+      }
+    }
+    return k < end ? k : head(kind == OUT ? outHead : kind == IN ? inHead : linkHead, i);
+  }
+
+  int head(int[] head, int i) {
+    return head[i] == -1 ? END : ~head[i];
+  }
+
+  int next(int k) {
+    int m = deltaNext[~k];
+    return m == -1 ? END : ~m;
+  }
+
+  /* Whether there is an edge from a to b */
+  boolean isEdge(int a, int b) {
+    if (a < built && Arrays.binarySearch(outTarget, outStart[a], outStart[a+1], b) >= 0
+      && !(cutAt[a] && cuts.contains(key(OUT, a, b)))) {
+      return true;
+    }
+    return !added.isEmpty() && added.contains(key(OUT, a, b));
+  }
+
+  /* Whether a and b are held together by a spring (an edge either way) */
+  boolean isLinked(int a, int b) {
+    if (a < built && Arrays.binarySearch(linkTarget, linkStart[a], linkStart[a+1], b) >= 0
+      && !(cutAt[a] && cuts.contains(key(LINK, a, b)))) {
+      return true;
+    }
+    return !added.isEmpty() && added.contains(linkKey(a, b));
+  }
+
+  /* Number of balls a ball is linked to */
+  int degree(int i) {
+    if (i < built && !cutAt[i] && linkHead[i] == -1) {
+      return linkStart[i+1] - linkStart[i];
+    }
+    int n = 0;
+    for (int k = firstLink(i); k != END; k = nextLink(i, k)) {
+      n++;
+    }
+    return n;
+  }
+
+  /* Whether the arrays alone are not the whole graph */
+  boolean hasDelta() {
+    return built != count || edits > 0 || addCount > 0;
+  }
+
+  /* Builds the arrays again with every edit folded in: one counting sort of the edges */
+  void compact() {
+    for (int k = 0; k < addCount; k++) {
+      wake(addFrom[k]);
+      wake(addTo[k]);
+    }
+    build(this);
+  }
+
+  /* A copy of the graph whose arrays are the whole of it, for code that reads the
+     arrays while this one may be walked at the same time (see GraphSnapshot.take()) */
+  Topology compacted() {
+    Topology copy = new Topology(store);
+    for (int i = 0; i < count; i++) {
+      copy.addNode();
+    }
+    copy.build(this);
+    return copy;
+  }
+
+  /* Every edge of source, in the arrays, the delta or recorded, into fresh arrays of
+     this one (which has as many balls) */
+  void build(Topology source) {
+    int capacity = source.edges + source.addCount;
+    int[] from = new int[capacity];
+    int[] to = new int[capacity];
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      for (int k = source.firstOut(i); k != END; k = source.nextOut(i, k)) {
+        from[n] = i;
+        to[n] = source.out(k);
+        n++;
+      }
+    }
+    for (int k = 0; k < source.addCount; k++) {
+      from[n] = source.addFrom[k];
+      to[n] = source.addTo[k];
+      n++;
+    }
+
+    outStart = new int[count+1];
+    outTarget = new int[n];
+    sortRuns(from, to, n, outStart, outTarget);
+    int outEdges = outStart[count];
+    if (outEdges < n) {
+      outTarget = Arrays.copyOf(outTarget, outEdges);
+    }
+
+    /* The in-edges are the out-edges turned around */
+    inStart = new int[count+1];
+    inSource = new int[outEdges];
+    for (int i = 0; i < count; i++) {
+      for (int k = outStart[i]; k < outStart[i+1]; k++) {
+        inStart[outTarget[k]+1]++;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      inStart[i+1] += inStart[i];
+    }
+    int[] fill = Arrays.copyOf(inStart, count);
+    for (int i = 0; i < count; i++) {
+      for (int k = outStart[i]; k < outStart[i+1]; k++) {
+        inSource[fill[outTarget[k]]++] = i;
+      }
+    }
+
+    /* A ball's links are its children and its parents, merged (both runs are sorted) */
+    linkStart = new int[count+1];
+    int[] links = new int[2*outEdges];
+    int l = 0;
+    for (int i = 0; i < count; i++) {
+      linkStart[i] = l;
+      int p = outStart[i];
+      int q = inStart[i];
+      while (p < outStart[i+1] || q < inStart[i+1]) {
+        int next;
+        if (q == inStart[i+1] || (p < outStart[i+1] && outTarget[p] <= inSource[q])) {
+          next = outTarget[p++];
+        } else {
+          next = inSource[q++];
+        }
+        if (l == linkStart[i] || links[l-1] != next) {
+          links[l++] = next;
+        }
+      }
+    }
+    linkStart[count] = l;
+    linkTarget = Arrays.copyOf(links, l);
+
+    reset();
+  }
+
+  /* The arrays are the whole graph: start a new delta */
+  void reset() {
+    built = count;
+    edges = outStart[count];
+    Arrays.fill(outHead, 0, count, -1);
+    Arrays.fill(inHead, 0, count, -1);
+    Arrays.fill(linkHead, 0, count, -1);
+    deltaCount = 0;
+    added.clear();
+    cuts.clear();
+    cutAt = new boolean[count];
+    edits = 0;
+    addCount = 0;
+  }
+
+  /* Takes ready-made arrays (from a GraphSnapshot) as the edges of the balls in the
+     store, in place of whatever was recorded */
+  void load(int[] _outStart, int[] _outTarget, int[] _inStart, int[] _inSource,
+            int[] _linkStart, int[] _linkTarget) {
+    outStart = _outStart;
+    outTarget = _outTarget;
+    inStart = _inStart;
+    inSource = _inSource;
+    linkStart = _linkStart;
+    linkTarget = _linkTarget;
+    reset();
+  }
+
+  /* Counting sort of the edges by source into start/target, then every run sorted with
+     repeats and loops dropped (start[] ends up describing the compacted runs) */
+  void sortRuns(int[] from, int[] to, int edges, int[] start, int[] target) {
+    for (int k = 0; k < edges; k++) {
+      start[from[k]+1]++;
+    }
+    for (int i = 0; i < count; i++) {
+      start[i+1] += start[i];
+    }
+    int[] fill = Arrays.copyOf(start, count);
+    for (int k = 0; k < edges; k++) {
+      target[fill[from[k]]++] = to[k];
+    }
+    int write = 0;
+    for (int i = 0; i < count; i++) {
+      int lo = start[i];
+      int hi = start[i+1];
+      Arrays.sort(target, lo, hi);
+      start[i] = write;
+      for (int k = lo; k < hi; k++) {
+        if (target[k] != i && (write == start[i] || target[write-1] != target[k])) {
+          target[write++] = target[k];
+        }
+      }
+    }
+    start[count] = write;
+  }
+
+  void wake(int id) {
+    if (id >= 0) {
+      store.wake(id);
+    }
+  }
+}
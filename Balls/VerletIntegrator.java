@@ -0,0 +1,21 @@
+/*
+Velocity Verlet:  x' = x + v dt + a dt^2/2,  v' = v + (a + a') dt/2.
+
+The forces are only known at the start of a step, so the second half of the velocity
+update of the previous step is done here, once the new acceleration is known (which
+is why the acceleration of the last step is kept in store.ax/ay).  The velocity used
+by the damping force therefore lags one step behind, which is fine for a drag term.
+*/
+public class VerletIntegrator implements Integrator {
+  public void move(PhysicsStore store, int i, float dt, float lastDt) {
+    float ax = store.fx[i]/store.mass[i];
+    float ay = store.fy[i]/store.mass[i];
+
+    store.vx[i] += 0.5f*(store.ax[i] + ax)*lastDt;
+    store.vy[i] += 0.5f*(store.ay[i] + ay)*lastDt;
+    store.nx[i] = store.px[i] + store.vx[i]*dt + 0.5f*ax*dt*dt;
+    store.ny[i] = store.py[i] + store.vy[i]*dt + 0.5f*ay*dt*dt;
+    store.ax[i] = ax;
+    store.ay[i] = ay;
+  }
+}